@@ -0,0 +1,317 @@
+package com.nordicsemi.ImageTransferDemo;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire format of the image transfer service. Commands go to RX_CHAR_UUID as the {@link BleCommand}
+ * ordinal followed by its parameters, big endian as the firmware reads them. The receiver answers on
+ * CMD_INFO_CHAR_UUID with the {@link CmdInfoCharCommands} ordinal + 1 followed by little endian fields,
+ * read through a {@link CmdInfoMessage}.
+ * <p>
+ * Each encoder allocates exactly the packet it returns, the GATT queue keeps it until it is written.
+ * Decoding allocates nothing.
+ */
+final class BleProtocol {
+    // TODO There are some unused commands, cleanUp required
+    enum BleCommand {NoCommand, StartSingleCapture, StartStreaming, StopStreaming, ChangeResolution, ChangePhy, GetBleParams, SetIncomingFileParams, ChangeFrameTime, StartStopAnim, SetIncomingFileTrailer, ResumeIncomingFile, SetWindowCrc, QueryContentHash}
+
+    enum CmdInfoCharCommands {setIncomingFileParams, setConnectionParams, setOutgoingFileParams}
+
+    // Second byte of a setOutgoingFileParams notification
+    enum OutgoingFileParams {ReadyToReceive, TransmissionFinished, ReadyToReceiveContinuous, ReceiverBusy, GrantCredits, ContentStatus}
+
+    // values() copies the array on every call
+    private static final CmdInfoCharCommands[] CMD_INFO_COMMANDS = CmdInfoCharCommands.values();
+    private static final OutgoingFileParams[] OUTGOING_FILE_PARAMS = OutgoingFileParams.values();
+
+    static final int FILE_NAME_SIZE = 32;
+    static final int INCOMING_FILE_PARAMS_SIZE = 38; // 32 byte file name, 4 byte file size, 1 spare byte, 1 byte control
+    private static final int FILE_SIZE_OFFSET = 32;
+    private static final int FILE_OPERATION_OFFSET = 37;
+
+    private BleProtocol() {
+    }
+
+    /**
+     * @param params Parameters of the command, may be null.
+     */
+    static byte[] command(BleCommand command, byte[] params) {
+        int length = params != null ? params.length : 0;
+        byte[] packet = new byte[1 + length];
+        packet[0] = (byte) command.ordinal();
+        if (length > 0) {
+            System.arraycopy(params, 0, packet, 1, length);
+        }
+        return packet;
+    }
+
+    static byte[] changePhy(int phy) {
+        return new byte[]{(byte) BleCommand.ChangePhy.ordinal(), (byte) phy};
+    }
+
+    static byte[] changeFrameTime(int frameTimeMs) {
+        byte[] packet = new byte[3];
+        packet[0] = (byte) BleCommand.ChangeFrameTime.ordinal();
+        putShort(packet, 1, frameTimeMs);
+        return packet;
+    }
+
+    static byte[] startStopAnim(boolean start) {
+        return new byte[]{(byte) BleCommand.StartStopAnim.ordinal(), (byte) (start ? 1 : 0)};
+    }
+
+    /**
+     * The parameters of SetIncomingFileParams, kept apart so a resumed upload can repeat them.
+     * The file name is cut to {@link #FILE_NAME_SIZE} bytes.
+     */
+    static byte[] incomingFileParams(String fileName, int fileSize, byte operation) {
+        byte[] params = new byte[INCOMING_FILE_PARAMS_SIZE];
+        putIncomingFileParams(params, 0, fileName, fileSize, operation);
+        return params;
+    }
+
+    static byte[] setIncomingFileParams(String fileName, int fileSize, byte operation) {
+        byte[] packet = new byte[1 + INCOMING_FILE_PARAMS_SIZE];
+        packet[0] = (byte) BleCommand.SetIncomingFileParams.ordinal();
+        putIncomingFileParams(packet, 1, fileName, fileSize, operation);
+        return packet;
+    }
+
+    /**
+     * @param incomingFileParams Built by {@link #incomingFileParams(String, int, byte)}.
+     */
+    static byte[] setIncomingFileParams(byte[] incomingFileParams) {
+        return command(BleCommand.SetIncomingFileParams, incomingFileParams);
+    }
+
+    /**
+     * The header of the interrupted upload followed by the offset to continue from.
+     */
+    static byte[] resumeIncomingFile(byte[] incomingFileParams, int offset) {
+        byte[] packet = new byte[1 + incomingFileParams.length + 4];
+        packet[0] = (byte) BleCommand.ResumeIncomingFile.ordinal();
+        System.arraycopy(incomingFileParams, 0, packet, 1, incomingFileParams.length);
+        putInt(packet, 1 + incomingFileParams.length, offset);
+        return packet;
+    }
+
+    static byte[] incomingFileTrailer(int fileSize) {
+        byte[] packet = new byte[5];
+        packet[0] = (byte) BleCommand.SetIncomingFileTrailer.ordinal();
+        putInt(packet, 1, fileSize);
+        return packet;
+    }
+
+    static byte[] windowCrc(int crc, int packetCount) {
+        byte[] packet = new byte[7];
+        packet[0] = (byte) BleCommand.SetWindowCrc.ordinal();
+        putInt(packet, 1, crc);
+        putShort(packet, 5, packetCount);
+        return packet;
+    }
+
+    /**
+     * @param hash SHA-256 of the content.
+     */
+    static byte[] queryContentHash(String fileName, byte[] hash) {
+        byte[] packet = new byte[1 + FILE_NAME_SIZE + hash.length];
+        packet[0] = (byte) BleCommand.QueryContentHash.ordinal();
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(name, 0, packet, 1, Math.min(name.length, FILE_NAME_SIZE));
+        System.arraycopy(hash, 0, packet, 1 + FILE_NAME_SIZE, hash.length);
+        return packet;
+    }
+
+    private static void putIncomingFileParams(byte[] buffer, int offset, String fileName, int fileSize, byte operation) {
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(name, 0, buffer, offset, Math.min(name.length, FILE_NAME_SIZE));
+        putInt(buffer, offset + FILE_SIZE_OFFSET, fileSize);
+        buffer[offset + FILE_OPERATION_OFFSET] = operation;
+    }
+
+    private static void putShort(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >> 8);
+        buffer[offset + 1] = (byte) value;
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >> 24);
+        buffer[offset + 1] = (byte) (value >> 16);
+        buffer[offset + 2] = (byte) (value >> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Flyweight view of one CMD_INFO notification, reused for every message by a single thread.
+     * {@link #wrap(byte[])} checks that the fixed part of the message is there, the optional fields
+     * have a has-method and every getter throws IndexOutOfBoundsException rather than read past the end.
+     */
+    static final class CmdInfoMessage {
+        private byte[] mValue;
+        private CmdInfoCharCommands mCommand;
+        private OutgoingFileParams mOutgoingFileParams;
+
+        /**
+         * @return false if the value is not a known, complete message, the view is empty then.
+         */
+        boolean wrap(byte[] value) {
+            mValue = null;
+            mCommand = null;
+            mOutgoingFileParams = null;
+            if (value == null || value.length < 2) {
+                return false;
+            }
+            int id = (value[0] & 0xFF) - 1;
+            if (id < 0 || id >= CMD_INFO_COMMANDS.length) {
+                return false;
+            }
+            CmdInfoCharCommands command = CMD_INFO_COMMANDS[id];
+            switch (command) {
+                case setIncomingFileParams:
+                    if (value.length < 5) {
+                        return false;
+                    }
+                    break;
+                case setConnectionParams:
+                    if (value.length < 6) {
+                        return false;
+                    }
+                    break;
+                case setOutgoingFileParams:
+                    int index = value[1] & 0xFF;
+                    if (index >= OUTGOING_FILE_PARAMS.length) {
+                        return false;
+                    }
+                    mOutgoingFileParams = OUTGOING_FILE_PARAMS[index];
+                    break;
+            }
+            mValue = value;
+            mCommand = command;
+            return true;
+        }
+
+        CmdInfoCharCommands getCommand() {
+            return mCommand;
+        }
+
+        int length() {
+            return mValue != null ? mValue.length : 0;
+        }
+
+        /**
+         * The raw message, for fields of variable length like the bitmap of bad packets.
+         */
+        byte[] getValue() {
+            return mValue;
+        }
+
+        // setIncomingFileParams
+
+        int getIncomingFileSize() {
+            expect(CmdInfoCharCommands.setIncomingFileParams);
+            return getInt(1);
+        }
+
+        // setConnectionParams: 2 byte MTU, 2 byte interval in 1.25 ms units, TX PHY, RX PHY, 2 byte frame time
+
+        int getMtu() {
+            expect(CmdInfoCharCommands.setConnectionParams);
+            return getUnsignedShort(1);
+        }
+
+        int getConnectionIntervalUnits() {
+            expect(CmdInfoCharCommands.setConnectionParams);
+            return getUnsignedShort(3);
+        }
+
+        int getTxPhy() {
+            expect(CmdInfoCharCommands.setConnectionParams);
+            return mValue[5] & 0xFF;
+        }
+
+        boolean hasFrameTime() {
+            return mCommand == CmdInfoCharCommands.setConnectionParams && mValue.length >= 9;
+        }
+
+        int getFrameTimeMs() {
+            expect(CmdInfoCharCommands.setConnectionParams);
+            return getUnsignedShort(7);
+        }
+
+        // setOutgoingFileParams
+
+        OutgoingFileParams getOutgoingFileParams() {
+            return mOutgoingFileParams;
+        }
+
+        /**
+         * The 4 byte count after the message type: the receiver's window size in the first
+         * ReadyToReceive, or the byte credits of GrantCredits.
+         */
+        boolean hasCount() {
+            return mOutgoingFileParams != null && mValue.length >= 6;
+        }
+
+        int getCount() {
+            expectOutgoingFileParams();
+            return getInt(2);
+        }
+
+        /**
+         * The byte after the message type: the window CRC status of a ReadyToReceive, or 1 in a
+         * ContentStatus if the receiver has the content.
+         */
+        boolean hasStatus() {
+            return mOutgoingFileParams != null && mValue.length >= 3;
+        }
+
+        int getStatus() {
+            expectOutgoingFileParams();
+            return getUnsignedByte(2);
+        }
+
+        /**
+         * The flags byte of the first ReadyToReceive, after its window size.
+         */
+        boolean hasReceiverFlags() {
+            return mOutgoingFileParams != null && mValue.length >= 7;
+        }
+
+        int getReceiverFlags() {
+            expectOutgoingFileParams();
+            return getUnsignedByte(6);
+        }
+
+        private void expect(CmdInfoCharCommands command) {
+            if (mCommand != command) {
+                throw new IllegalStateException("Not a " + command + " message");
+            }
+        }
+
+        private void expectOutgoingFileParams() {
+            expect(CmdInfoCharCommands.setOutgoingFileParams);
+        }
+
+        private void checkBounds(int offset, int size) {
+            if (offset + size > mValue.length) {
+                throw new IndexOutOfBoundsException("Field at " + offset + " of " + mCommand + " ends after " + mValue.length + " bytes");
+            }
+        }
+
+        private int getUnsignedByte(int offset) {
+            checkBounds(offset, 1);
+            return mValue[offset] & 0xFF;
+        }
+
+        private int getUnsignedShort(int offset) {
+            checkBounds(offset, 2);
+            return (mValue[offset] & 0xFF) | (mValue[offset + 1] & 0xFF) << 8;
+        }
+
+        private int getInt(int offset) {
+            checkBounds(offset, 4);
+            return (mValue[offset] & 0xFF) | (mValue[offset + 1] & 0xFF) << 8
+                    | (mValue[offset + 2] & 0xFF) << 16 | (mValue[offset + 3] & 0xFF) << 24;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.nordicsemi.ImageTransferDemo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * rsync style signature of a file version: a weak rolling checksum and a truncated MD5 for
+ * every block of the file, plus the SHA-256 of the whole version. The phone keeps the signature
+ * of the last version it sent, the file itself is only on the receiver.
+ */
+class BlockSignature {
+    private static final int FILE_VERSION = 2; // Version 1 had no content hash, such files are ignored
+    static final int MIN_BLOCK_SIZE = 256;
+    static final int MAX_BLOCK_SIZE = 8 * 1024;
+
+    final int blockSize;
+    final long fileLength;
+    final byte[] contentHash; // SHA-256 of the version, identifies the base of a delta
+    private final int[] mWeak;
+    private final long[] mStrong;
+    private Map<Integer, int[]> mIndex;
+
+    private BlockSignature(int blockSize, long fileLength, byte[] contentHash, int[] weak, long[] strong) {
+        this.blockSize = blockSize;
+        this.fileLength = fileLength;
+        this.contentHash = contentHash;
+        mWeak = weak;
+        mStrong = strong;
+    }
+
+    /**
+     * Picks a block size close to the square root of the file length, which balances the
+     * signature size against the literal bytes sent for every changed block.
+     */
+    static int blockSizeFor(long fileLength) {
+        int size = Integer.highestOneBit((int) Math.max(1, Math.sqrt(fileLength)));
+        return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    int getBlockCount() {
+        return mWeak.length;
+    }
+
+    /**
+     * @return Length of the block, only the last block may be shorter than the block size.
+     */
+    int getBlockLength(int block) {
+        return (int) Math.min(blockSize, fileLength - (long) block * blockSize);
+    }
+
+    /**
+     * Looks up a block with the given content.
+     *
+     * @param weak {@link #weakChecksum} of the data.
+     * @return The block index, or -1 if no block matches.
+     */
+    int find(int weak, byte[] data, int offset, int length) {
+        if (mIndex == null) {
+            mIndex = buildIndex();
+        }
+        int[] candidates = mIndex.get(weak);
+        if (candidates == null) {
+            return -1;
+        }
+        long strong = 0;
+        boolean strongComputed = false;
+        for (int block : candidates) {
+            if (getBlockLength(block) != length) {
+                continue;
+            }
+            if (!strongComputed) {
+                strong = strongChecksum(data, offset, length);
+                strongComputed = true;
+            }
+            if (mStrong[block] == strong) {
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    private Map<Integer, int[]> buildIndex() {
+        Map<Integer, int[]> index = new HashMap<>();
+        for (int i = 0; i < mWeak.length; i++) {
+            int[] blocks = index.get(mWeak[i]);
+            if (blocks == null) {
+                blocks = new int[]{i};
+            } else {
+                int[] grown = new int[blocks.length + 1];
+                System.arraycopy(blocks, 0, grown, 0, blocks.length);
+                grown[blocks.length] = i;
+                blocks = grown;
+            }
+            index.put(mWeak[i], blocks);
+        }
+        return index;
+    }
+
+    /**
+     * rsync's checksum, two 16 bit sums. It can be rolled one byte forward with {@link #roll}.
+     */
+    static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xFF;
+            b += (length - i) * (data[offset + i] & 0xFF);
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    /**
+     * Moves the checksum of a window of the given length one byte forward.
+     */
+    static int roll(int weak, int length, byte out, byte in) {
+        int a = weak & 0xFFFF;
+        int b = weak >>> 16;
+        a = (a - (out & 0xFF) + (in & 0xFF)) & 0xFFFF;
+        b = (b - length * (out & 0xFF) + a) & 0xFFFF;
+        return a | (b << 16);
+    }
+
+    static long strongChecksum(byte[] data, int offset, int length) {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        md5.update(data, offset, length);
+        byte[] digest = md5.digest();
+        long strong = 0;
+        for (int i = 0; i < 8; i++) {
+            strong = (strong << 8) | (digest[i] & 0xFF);
+        }
+        return strong;
+    }
+
+    /**
+     * @return The stored signature, or null if there is none or it cannot be read.
+     */
+    static BlockSignature load(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != FILE_VERSION) {
+                    return null;
+                }
+                int blockSize = in.readInt();
+                long fileLength = in.readLong();
+                byte[] contentHash = new byte[DeliveredContentIndex.HASH_SIZE];
+                in.readFully(contentHash);
+                int count = in.readInt();
+                int[] weak = new int[count];
+                long[] strong = new long[count];
+                for (int i = 0; i < count; i++) {
+                    weak[i] = in.readInt();
+                    strong[i] = in.readLong();
+                }
+                return new BlockSignature(blockSize, fileLength, contentHash, weak, strong);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    void save(File file) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(FILE_VERSION);
+            out.writeInt(blockSize);
+            out.writeLong(fileLength);
+            out.write(contentHash);
+            out.writeInt(mWeak.length);
+            for (int i = 0; i < mWeak.length; i++) {
+                out.writeInt(mWeak[i]);
+                out.writeLong(mStrong[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Computes the signature of a new version while it is being sent.
+     */
+    static class Builder {
+        private final int mBlockSize;
+        private final byte[] mBlock;
+        private final MessageDigest mContentDigest;
+        private int mBlockLength;
+        private long mFileLength;
+        private int[] mWeak = new int[16];
+        private long[] mStrong = new long[16];
+        private int mCount;
+
+        Builder(int blockSize) {
+            mBlockSize = blockSize;
+            mBlock = new byte[blockSize];
+            try {
+                mContentDigest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void update(byte[] data, int offset, int length) {
+            mFileLength += length;
+            mContentDigest.update(data, offset, length);
+            while (length > 0) {
+                int n = Math.min(length, mBlockSize - mBlockLength);
+                System.arraycopy(data, offset, mBlock, mBlockLength, n);
+                mBlockLength += n;
+                offset += n;
+                length -= n;
+                if (mBlockLength == mBlockSize) {
+                    addBlock();
+                }
+            }
+        }
+
+        private void addBlock() {
+            if (mCount == mWeak.length) {
+                int[] weak = new int[mCount * 2];
+                long[] strong = new long[mCount * 2];
+                System.arraycopy(mWeak, 0, weak, 0, mCount);
+                System.arraycopy(mStrong, 0, strong, 0, mCount);
+                mWeak = weak;
+                mStrong = strong;
+            }
+            mWeak[mCount] = weakChecksum(mBlock, 0, mBlockLength);
+            mStrong[mCount] = strongChecksum(mBlock, 0, mBlockLength);
+            mCount++;
+            mBlockLength = 0;
+        }
+
+        BlockSignature build() {
+            if (mBlockLength > 0) {
+                addBlock();
+            }
+            int[] weak = new int[mCount];
+            long[] strong = new long[mCount];
+            System.arraycopy(mWeak, 0, weak, 0, mCount);
+            System.arraycopy(mStrong, 0, strong, 0, mCount);
+            return new BlockSignature(mBlockSize, mFileLength, mContentDigest.digest(), weak, strong);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.nordicsemi.ImageTransferDemo;
+
+/**
+ * Sizes the bulk window of Fragmented_mode, i.e. how many bytes are written before waiting
+ * for the next ReadyToReceive. The upper bound is the receiver's buffer, which the receiver
+ * may announce in its first ReadyToReceive. Within it the window is adjusted AIMD style
+ * from the handshake wait time, the time from the last packet of a window until the
+ * ReadyToReceive for the next one: quick handshakes grow the window by a fixed step, slow
+ * ones halve it.
+ * <p>
+ * A receiver only answers early if the window is closed explicitly with SetWindowCrc, others
+ * wait until their whole buffer is filled. The window is therefore only adjusted once
+ * {@link #setAdaptive(boolean)} enabled it, otherwise it stays at the receiver's buffer.
+ */
+class BulkWindowController {
+    // Receiver cache of the original firmware, 136 payloads of a 243 byte MTU
+    static final int DEFAULT_MAX_WINDOW = 136 * 240;
+    static final int MIN_WINDOW = 2 * 1024;
+    private static final int INCREASE_STEP = 2 * 1024;
+    private static final long FAST_HANDSHAKE_NANOS = 50000000L;
+    private static final long SLOW_HANDSHAKE_NANOS = 250000000L;
+
+    private int mMaxWindow = DEFAULT_MAX_WINDOW;
+    private int mWindow = DEFAULT_MAX_WINDOW;
+    private long mLastWaitNanos;
+    private long mAverageWaitNanos;
+    private int mHandshakes;
+    private boolean mAdaptive;
+
+    /**
+     * Starts a new transfer.
+     *
+     * @param maxWindow Buffer size announced by the receiver, or 0 to use {@link #DEFAULT_MAX_WINDOW}.
+     *                  The announced size is a hard bound, the window never exceeds it.
+     */
+    void reset(int maxWindow) {
+        mMaxWindow = maxWindow > 0 ? maxWindow : DEFAULT_MAX_WINDOW;
+        mWindow = mMaxWindow;
+        mAdaptive = false;
+        mLastWaitNanos = 0;
+        mAverageWaitNanos = 0;
+        mHandshakes = 0;
+    }
+
+    /**
+     * @param adaptive true if the receiver answers a window closed before its buffer is full.
+     */
+    void setAdaptive(boolean adaptive) {
+        mAdaptive = adaptive;
+        if (!adaptive) {
+            mWindow = mMaxWindow;
+        }
+    }
+
+    /**
+     * Records the handshake and, if adaptive, adjusts the window after the receiver asked for the next one.
+     *
+     * @param waitNanos Time between the last packet of the previous window and the ReadyToReceive.
+     */
+    void onHandshake(long waitNanos) {
+        mLastWaitNanos = waitNanos;
+        mAverageWaitNanos = mHandshakes == 0 ? waitNanos : (mAverageWaitNanos * 7 + waitNanos) / 8;
+        mHandshakes++;
+        if (!mAdaptive) {
+            return;
+        }
+        if (mAverageWaitNanos < FAST_HANDSHAKE_NANOS) {
+            mWindow = Math.min(mWindow + INCREASE_STEP, mMaxWindow);
+        } else if (mAverageWaitNanos > SLOW_HANDSHAKE_NANOS) {
+            mWindow = Math.max(mWindow / 2, Math.min(MIN_WINDOW, mMaxWindow));
+        }
+    }
+
+    int getWindow() {
+        return mWindow;
+    }
+
+    int getMaxWindow() {
+        return mMaxWindow;
+    }
+
+    long getLastWaitNanos() {
+        return mLastWaitNanos;
+    }
+
+    long getAverageWaitNanos() {
+        return mAverageWaitNanos;
+    }
+}
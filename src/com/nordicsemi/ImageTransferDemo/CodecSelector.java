@@ -0,0 +1,93 @@
+package com.nordicsemi.ImageTransferDemo;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Picks the codec for a transfer by compressing a sample from the start of the file with
+ * every candidate. The estimated transfer time of a codec is the time on air of the
+ * compressed file at the current link rate plus the time to compress the whole file,
+ * both extrapolated from the sample. Every codec compresses the sample once untimed first,
+ * so class loading, native setup and the first interpreted run do not count as its cost.
+ */
+class CodecSelector {
+    private final static String TAG = "lbs_tag_codec";
+
+    static final int SAMPLE_SIZE = 4 * 1024;
+    // Compression is bypassed when the entropy estimate predicts less than 10% saving
+    static final float INCOMPRESSIBLE_RATIO = 0.9f;
+
+    private final CompressionCodec[] mCandidates;
+
+    CodecSelector(CompressionCodec[] candidates) {
+        mCandidates = candidates;
+    }
+
+    /**
+     * Order-0 entropy of the sample from a byte histogram, in bits per byte. Divided by 8
+     * it is a cheap estimate of the best ratio an entropy coder can reach. It misses long
+     * range repetition, but JPEG, PNG, ZIP and other compressed data come out close to 8.
+     */
+    static float estimateEntropy(byte[] sample, int length) {
+        if (length == 0) {
+            return 0.0f;
+        }
+        int[] histogram = new int[256];
+        for (int i = 0; i < length; i++) {
+            histogram[sample[i] & 0xFF]++;
+        }
+        double entropy = 0.0;
+        for (int count : histogram) {
+            if (count > 0) {
+                double p = (double) count / length;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return (float) (entropy / Math.log(2));
+    }
+
+    static boolean isIncompressible(float bitsPerByte) {
+        return bitsPerByte / 8.0f > INCOMPRESSIBLE_RATIO;
+    }
+
+    /**
+     * @param sample       The first bytes of the file.
+     * @param sampleLength Number of valid bytes in sample.
+     * @param fileLength   Length of the whole file.
+     * @param linkRateBps  Current throughput of the link in bits per second.
+     */
+    CompressionCodec select(byte[] sample, int sampleLength, long fileLength, int linkRateBps) {
+        CompressionCodec best = CompressionCodecs.NONE;
+        if (sampleLength == 0 || linkRateBps <= 0) {
+            return best;
+        }
+        double bestSeconds = Double.MAX_VALUE;
+        double scale = (double) fileLength / sampleLength;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(sampleLength + 64);
+        for (CompressionCodec codec : mCandidates) {
+            long start;
+            try {
+                // Warm-up, not timed
+                codec.compress(new ByteArrayInputStream(sample, 0, sampleLength), out);
+                out.reset();
+                start = System.nanoTime();
+                codec.compress(new ByteArrayInputStream(sample, 0, sampleLength), out);
+            } catch (IOException e) {
+                Log.w(TAG, codec.getName() + " failed on sample: " + e);
+                continue;
+            }
+            double cpuSeconds = (System.nanoTime() - start) * scale / 1e9;
+            double airSeconds = out.size() * scale * 8.0 / linkRateBps;
+            Log.d(TAG, codec.getName() + ": ratio " + (float) out.size() / sampleLength
+                    + ", est. " + (float) (airSeconds + cpuSeconds) + " s");
+            if (airSeconds + cpuSeconds < bestSeconds) {
+                bestSeconds = airSeconds + cpuSeconds;
+                best = codec;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,29 @@
+package com.nordicsemi.ImageTransferDemo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compression format used for a file transfer. The codec ID is sent in the low nibble of
+ * the operation byte of the SetIncomingFileParams header, so the receiver knows how to
+ * decode the file.
+ */
+public interface CompressionCodec {
+    int ID_NONE = 0x00;
+    int ID_GZIP = 0x01;
+    int ID_DEFLATE_RAW = 0x02;
+    int ID_LZ4_BLOCKS = 0x03;
+
+    int ID_MASK = 0x0F;
+
+    int getId();
+
+    String getName();
+
+    /**
+     * Compresses the whole input into the output as it is read. The input is not closed,
+     * and the output is finished but not closed.
+     */
+    void compress(InputStream in, OutputStream out) throws IOException;
+}
@@ -0,0 +1,161 @@
+package com.nordicsemi.ImageTransferDemo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The codecs the file transfer service can send with.
+ */
+public final class CompressionCodecs {
+    static final int COPY_BUFFER_SIZE = 4 * 1024;
+    public static final int DEFAULT_LEVEL = 6;
+
+    private CompressionCodecs() {
+    }
+
+    /** Sends the file as it is. */
+    public static final CompressionCodec NONE = new CompressionCodec() {
+        @Override
+        public int getId() {
+            return ID_NONE;
+        }
+
+        @Override
+        public String getName() {
+            return "none";
+        }
+
+        @Override
+        public void compress(InputStream in, OutputStream out) throws IOException {
+            copy(in, out);
+        }
+    };
+
+    public static CompressionCodec gzip(int level) {
+        return new DeflateCodec(CompressionCodec.ID_GZIP, level);
+    }
+
+    /** Deflate without the gzip header and trailer, saves 18 bytes and the receiver's CRC32. */
+    public static CompressionCodec deflateRaw(int level) {
+        return new DeflateCodec(CompressionCodec.ID_DEFLATE_RAW, level);
+    }
+
+    public static CompressionCodec lz4Blocks() {
+        return new Lz4BlockCodec();
+    }
+
+    /**
+     * Recreates a codec from its {@link CompressionCodec#getName()}.
+     *
+     * @return The codec, or null if the name is not known.
+     */
+    public static CompressionCodec forName(String name) {
+        if (name == null) {
+            return null;
+        }
+        if (name.equals(NONE.getName())) {
+            return NONE;
+        }
+        if (name.equals("lz4")) {
+            return lz4Blocks();
+        }
+        try {
+            if (name.startsWith("gzip-")) {
+                return gzip(Integer.parseInt(name.substring(5)));
+            }
+            if (name.startsWith("deflate-")) {
+                return deflateRaw(Integer.parseInt(name.substring(8)));
+            }
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return null;
+    }
+
+    /**
+     * Codecs the automatic selection chooses from.
+     */
+    static CompressionCodec[] autoCandidates() {
+        return new CompressionCodec[]{
+                NONE,
+                lz4Blocks(),
+                deflateRaw(1),
+                deflateRaw(6),
+                deflateRaw(9),
+        };
+    }
+
+    static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+    }
+
+    /**
+     * GZIP or raw deflate at levels 1-9.
+     */
+    static class DeflateCodec implements CompressionCodec {
+        private final int mId;
+        private final int mLevel;
+
+        DeflateCodec(int id, int level) {
+            if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+                throw new IllegalArgumentException("Deflate level must be 1-9: " + level);
+            }
+            mId = id;
+            mLevel = level;
+        }
+
+        @Override
+        public int getId() {
+            return mId;
+        }
+
+        @Override
+        public String getName() {
+            return (mId == ID_GZIP ? "gzip-" : "deflate-") + mLevel;
+        }
+
+        @Override
+        public void compress(InputStream in, OutputStream out) throws IOException {
+            if (mId == ID_GZIP) {
+                LevelGZIPOutputStream gzip = new LevelGZIPOutputStream(out, mLevel);
+                try {
+                    copy(in, gzip);
+                    gzip.finish();
+                } finally {
+                    gzip.end();
+                }
+                return;
+            }
+            Deflater deflater = new Deflater(mLevel, true);
+            try {
+                DeflaterOutputStream dos = new DeflaterOutputStream(out, deflater, COPY_BUFFER_SIZE);
+                copy(in, dos);
+                dos.finish();
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    private static class LevelGZIPOutputStream extends GZIPOutputStream {
+        LevelGZIPOutputStream(OutputStream out, int level) throws IOException {
+            super(out, COPY_BUFFER_SIZE);
+            def.setLevel(level);
+        }
+
+        /**
+         * Frees the native deflater, the output stream is not closed.
+         */
+        void end() {
+            def.end();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.nordicsemi.ImageTransferDemo;
+
+import java.util.Locale;
+
+/**
+ * Where the time between connectGatt and the first moment a file can be sent goes. Every step of
+ * the connection setup is stamped with System.nanoTime once, the connection is ready when both
+ * notifications are enabled, the BLE parameters arrived and no MTU exchange is outstanding.
+ */
+final class ConnectionTrace {
+    enum Step {Connected, ServicesDiscovered, TxNotificationsEnabled, CmdInfoNotificationsEnabled, BleParamsReceived,
+        MtuExchanged}
+
+    private static final Step[] STEPS = Step.values();
+
+    private final boolean mAutoConnect;
+    private final long mStartNanos;
+    private final long[] mStepNanos = new long[STEPS.length]; // 0 until the step is reached
+    private boolean mMtuPending;
+    private long mReadyNanos;
+
+    ConnectionTrace(boolean autoConnect) {
+        mAutoConnect = autoConnect;
+        mStartNanos = System.nanoTime();
+    }
+
+    synchronized void onMtuRequested() {
+        if (mStepNanos[Step.MtuExchanged.ordinal()] == 0) {
+            mMtuPending = true;
+        }
+    }
+
+    /**
+     * Stamps the step, only its first occurrence counts.
+     *
+     * @return true if the connection just became ready.
+     */
+    synchronized boolean mark(Step step) {
+        if (mStepNanos[step.ordinal()] == 0) {
+            mStepNanos[step.ordinal()] = Math.max(System.nanoTime(), mStartNanos + 1);
+        }
+        if (step == Step.MtuExchanged) {
+            mMtuPending = false;
+        }
+        if (mReadyNanos != 0 || mMtuPending
+                || mStepNanos[Step.TxNotificationsEnabled.ordinal()] == 0
+                || mStepNanos[Step.CmdInfoNotificationsEnabled.ordinal()] == 0
+                || mStepNanos[Step.BleParamsReceived.ordinal()] == 0) {
+            return false;
+        }
+        mReadyNanos = System.nanoTime();
+        return true;
+    }
+
+    boolean isAutoConnect() {
+        return mAutoConnect;
+    }
+
+    /**
+     * @return Nanoseconds from connectGatt until ready, 0 if not ready yet.
+     */
+    synchronized long getReadyNanos() {
+        return mReadyNanos != 0 ? mReadyNanos - mStartNanos : 0;
+    }
+
+    /**
+     * @return The steps in the order they were reached, each with the time since the one before.
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder(mAutoConnect ? "autoConnect" : "Direct connect");
+        sb.append(mReadyNanos != 0 ? String.format(Locale.US, ", ready after %.1f ms:", millis(mReadyNanos - mStartNanos))
+                : ", not ready:");
+        boolean[] listed = new boolean[STEPS.length];
+        long previous = mStartNanos;
+        while (true) {
+            int next = -1;
+            for (int i = 0; i < STEPS.length; i++) {
+                if (!listed[i] && mStepNanos[i] != 0 && (next == -1 || mStepNanos[i] < mStepNanos[next])) {
+                    next = i;
+                }
+            }
+            if (next == -1) {
+                break;
+            }
+            listed[next] = true;
+            sb.append(String.format(Locale.US, " %s +%.1f ms,", STEPS[next], millis(mStepNanos[next] - previous)));
+            previous = mStepNanos[next];
+        }
+        sb.setLength(sb.length() - 1);
+        return sb.toString();
+    }
+
+    private static float millis(long nanos) {
+        return nanos / 1000000.0f;
+    }
+}
@@ -0,0 +1,105 @@
+package com.nordicsemi.ImageTransferDemo;
+
+import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A file picked through the ContentResolver. Gives the length without reading the
+ * content into memory, since InputStream.available() is not reliable for content
+ * provider streams.
+ */
+class ContentSource {
+    private final static String TAG = "lbs_tag_source";
+
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+    private long mLength = -1;
+
+    ContentSource(ContentResolver resolver, Uri uri) {
+        mResolver = resolver;
+        mUri = uri;
+    }
+
+    Uri getUri() {
+        return mUri;
+    }
+
+    String getName() {
+        String path = mUri.getPath();
+        return path.substring(path.lastIndexOf("/") + 1);
+    }
+
+    InputStream open() throws IOException {
+        InputStream inputStream = mResolver.openInputStream(mUri);
+        if (inputStream == null) {
+            throw new FileNotFoundException("Unable to open " + mUri);
+        }
+        return inputStream;
+    }
+
+    /**
+     * Returns the file length. Asks the provider first and only counts the bytes of the
+     * stream when the provider does not know the length.
+     */
+    long length() throws IOException {
+        if (mLength < 0) {
+            mLength = queryLength();
+        }
+        if (mLength < 0) {
+            mLength = countLength();
+        }
+        return mLength;
+    }
+
+    private long queryLength() {
+        try {
+            AssetFileDescriptor afd = mResolver.openAssetFileDescriptor(mUri, "r");
+            if (afd != null) {
+                long length = afd.getLength();
+                afd.close();
+                if (length != AssetFileDescriptor.UNKNOWN_LENGTH) {
+                    return length;
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "No file descriptor for " + mUri + ": " + e);
+        }
+
+        Cursor cursor = mResolver.query(mUri, new String[]{OpenableColumns.SIZE}, null, null, null);
+        if (cursor != null) {
+            try {
+                int column = cursor.getColumnIndex(OpenableColumns.SIZE);
+                if (cursor.moveToFirst() && column >= 0 && !cursor.isNull(column)) {
+                    return cursor.getLong(column);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return -1;
+    }
+
+    private long countLength() throws IOException {
+        Log.w(TAG, "Provider does not report a length for " + mUri + ", counting bytes");
+        InputStream inputStream = open();
+        byte[] buffer = new byte[8 * 1024];
+        long length = 0;
+        try {
+            int n;
+            while ((n = inputStream.read(buffer)) != -1) {
+                length += n;
+            }
+        } finally {
+            inputStream.close();
+        }
+        return length;
+    }
+}
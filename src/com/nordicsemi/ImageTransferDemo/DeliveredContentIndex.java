@@ -0,0 +1,126 @@
+package com.nordicsemi.ImageTransferDemo;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * SHA-256 hashes of the content delivered to one device, so a repeated upload of the same
+ * bytes, under any name or URI, can be replaced by asking the receiver whether it still has
+ * them. Stored as one hex hash per line, the oldest entries are dropped first.
+ */
+class DeliveredContentIndex {
+    static final int HASH_SIZE = 32;
+    static final int MAX_ENTRIES = 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File mFile;
+    private final LinkedHashSet<String> mHashes = new LinkedHashSet<>();
+
+    private DeliveredContentIndex(File file) {
+        mFile = file;
+    }
+
+    /**
+     * @return The index stored in the file, empty if there is none or it cannot be read.
+     */
+    static DeliveredContentIndex load(File file) {
+        DeliveredContentIndex index = new DeliveredContentIndex(file);
+        if (!file.exists()) {
+            return index;
+        }
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.length() == HASH_SIZE * 2) {
+                        index.mHashes.add(line);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            index.mHashes.clear();
+        }
+        return index;
+    }
+
+    boolean isEmpty() {
+        return mHashes.isEmpty();
+    }
+
+    boolean contains(byte[] hash) {
+        return mHashes.contains(toHex(hash));
+    }
+
+    /**
+     * Records delivered content as the newest entry.
+     */
+    void add(byte[] hash) {
+        String key = toHex(hash);
+        mHashes.remove(key);
+        mHashes.add(key);
+        Iterator<String> oldest = mHashes.iterator();
+        while (mHashes.size() > MAX_ENTRIES) {
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    void remove(byte[] hash) {
+        mHashes.remove(toHex(hash));
+    }
+
+    void save() throws IOException {
+        File dir = mFile.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        BufferedWriter out = new BufferedWriter(new FileWriter(mFile));
+        try {
+            for (String hash : mHashes) {
+                out.write(hash);
+                out.newLine();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Hashes the whole stream, it is not closed.
+     */
+    static byte[] sha256(InputStream in) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[8 * 1024];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, n);
+        }
+        return digest.digest();
+    }
+
+    static String toHex(byte[] hash) {
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = HEX[(hash[i] >> 4) & 0x0F];
+            hex[2 * i + 1] = HEX[hash[i] & 0x0F];
+        }
+        return new String(hex);
+    }
+}
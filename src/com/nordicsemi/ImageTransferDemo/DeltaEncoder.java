@@ -0,0 +1,160 @@
+package com.nordicsemi.ImageTransferDemo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Encodes a new file version as a delta against the signature of the version the receiver
+ * already has. The delta starts with the 4 byte block size, the 4 byte length and the 32 byte
+ * SHA-256 of the old version, so the receiver can reject a delta against a version it does not
+ * have. Instructions follow:
+ * <ul>
+ * <li>{@link #OP_LITERAL}, 2 byte length, the literal bytes</li>
+ * <li>{@link #OP_COPY}, 4 byte first block, 2 byte block count: copy blocks of the old version</li>
+ * </ul>
+ * All values are big endian. Only one block size window of the new file is held in memory
+ * besides a bounded buffer of pending literals.
+ */
+class DeltaEncoder {
+    static final byte OP_LITERAL = 0;
+    static final byte OP_COPY = 1;
+    private static final int MAX_LITERAL = 0xFFFF;
+    private static final int MAX_COPY_BLOCKS = 0xFFFF;
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private final BlockSignature mOld;
+    private final OutputStream mOut;
+    private final byte[] mHeader = new byte[8];
+    private int mCopyStart = -1;
+    private int mCopyCount;
+
+    private DeltaEncoder(BlockSignature old, OutputStream out) {
+        mOld = old;
+        mOut = out;
+    }
+
+    /**
+     * Writes the delta of the stream against the old signature.
+     *
+     * @param signature Receives the content of the new version, for the next delta.
+     */
+    static void encode(InputStream in, BlockSignature old, OutputStream out, BlockSignature.Builder signature)
+            throws IOException {
+        new DeltaEncoder(old, out).run(in, signature);
+    }
+
+    private void run(InputStream in, BlockSignature.Builder signature) throws IOException {
+        int blockSize = mOld.blockSize;
+        byte[] buffer = new byte[Math.max(BUFFER_SIZE, 2 * blockSize)];
+        int pos = 0;       // Start of the window
+        int end = 0;       // End of the data read so far
+        int literal = 0;   // Start of the literal bytes not written yet
+        boolean eof = false;
+        boolean rolling = false;
+        int weak = 0;
+
+        int baseLength = (int) mOld.fileLength;
+        mHeader[0] = (byte) (blockSize >>> 24);
+        mHeader[1] = (byte) (blockSize >>> 16);
+        mHeader[2] = (byte) (blockSize >>> 8);
+        mHeader[3] = (byte) blockSize;
+        mHeader[4] = (byte) (baseLength >>> 24);
+        mHeader[5] = (byte) (baseLength >>> 16);
+        mHeader[6] = (byte) (baseLength >>> 8);
+        mHeader[7] = (byte) baseLength;
+        mOut.write(mHeader, 0, 8);
+        mOut.write(mOld.contentHash);
+
+        while (true) {
+            if (end - pos < blockSize && !eof) {
+                writeLiteral(buffer, literal, pos - literal);
+                System.arraycopy(buffer, pos, buffer, 0, end - pos);
+                end -= pos;
+                pos = 0;
+                literal = 0;
+                while (end < buffer.length) {
+                    int n = in.read(buffer, end, buffer.length - end);
+                    if (n == -1) {
+                        eof = true;
+                        break;
+                    }
+                    signature.update(buffer, end, n);
+                    end += n;
+                }
+            }
+            int length = Math.min(blockSize, end - pos);
+            if (length == 0) {
+                break;
+            }
+            if (!rolling) {
+                weak = BlockSignature.weakChecksum(buffer, pos, length);
+                rolling = true;
+            }
+            int block = mOld.find(weak, buffer, pos, length);
+            if (block >= 0) {
+                writeLiteral(buffer, literal, pos - literal);
+                writeCopy(block);
+                pos += length;
+                literal = pos;
+                rolling = false;
+            } else if (length == blockSize && pos + length < end) {
+                weak = BlockSignature.roll(weak, length, buffer[pos], buffer[pos + length]);
+                pos++;
+            } else {
+                // The window shrinks at the end of the file
+                pos++;
+                rolling = false;
+            }
+            if (pos - literal >= MAX_LITERAL) {
+                writeLiteral(buffer, literal, pos - literal);
+                literal = pos;
+            }
+        }
+        writeLiteral(buffer, literal, end - literal);
+        flushCopy();
+    }
+
+    private void writeLiteral(byte[] data, int offset, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        flushCopy();
+        while (length > 0) {
+            int n = Math.min(length, MAX_LITERAL);
+            mHeader[0] = OP_LITERAL;
+            mHeader[1] = (byte) (n >>> 8);
+            mHeader[2] = (byte) n;
+            mOut.write(mHeader, 0, 3);
+            mOut.write(data, offset, n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    private void writeCopy(int block) throws IOException {
+        if (mCopyStart >= 0 && block == mCopyStart + mCopyCount && mCopyCount < MAX_COPY_BLOCKS) {
+            mCopyCount++;
+            return;
+        }
+        flushCopy();
+        mCopyStart = block;
+        mCopyCount = 1;
+    }
+
+    private void flushCopy() throws IOException {
+        if (mCopyStart < 0) {
+            return;
+        }
+        mHeader[0] = OP_COPY;
+        mHeader[1] = (byte) (mCopyStart >>> 24);
+        mHeader[2] = (byte) (mCopyStart >>> 16);
+        mHeader[3] = (byte) (mCopyStart >>> 8);
+        mHeader[4] = (byte) mCopyStart;
+        mHeader[5] = (byte) (mCopyCount >>> 8);
+        mHeader[6] = (byte) mCopyCount;
+        mOut.write(mHeader, 0, 7);
+        mCopyStart = -1;
+        mCopyCount = 0;
+    }
+}
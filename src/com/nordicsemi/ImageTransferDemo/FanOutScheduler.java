@@ -0,0 +1,122 @@
+package com.nordicsemi.ImageTransferDemo;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends one {@link SharedPayload} to many devices. Every device gets its own {@link GattSession},
+ * the packet writes of all sessions are issued round robin, so a slow device does not hold up
+ * the others and every link gets its share of the controller.
+ * <p>
+ * Android keeps one outstanding GATT operation per connection and shares a small pool of
+ * controller buffers across all links, so only {@link #MAX_WRITES_IN_FLIGHT} writes are in
+ * flight at once, and at most {@link #MAX_CONNECTIONS} devices are connected at a time.
+ * The others wait until a session ends.
+ */
+class FanOutScheduler {
+    private final static String TAG = "lbs_tag_fanout";
+    static final int MAX_CONNECTIONS = 7;
+    static final int MAX_WRITES_IN_FLIGHT = 4;
+
+    private final Context mContext;
+    private final BluetoothAdapter mAdapter;
+    private final List<GattSession> mSessions = new ArrayList<>();
+    private int mNextSession;
+    private int mWritesInFlight;
+
+    /**
+     * @param handler Runs the timeouts of the sessions' GATT operations.
+     * @param trace   Records the GATT events of all sessions.
+     */
+    FanOutScheduler(Context context, BluetoothAdapter adapter, List<String> addresses, SharedPayload payload,
+                    Handler handler, GattEventTrace trace) {
+        mContext = context;
+        mAdapter = adapter;
+        for (String address : addresses) {
+            mSessions.add(new GattSession(address, this, payload, handler, trace));
+        }
+    }
+
+    synchronized void start() {
+        connectWaitingSessions();
+    }
+
+    private void connectWaitingSessions() {
+        int connected = 0;
+        for (GattSession session : mSessions) {
+            if (session.getState() != GattSession.State.Waiting && !session.isEnded()) {
+                connected++;
+            }
+        }
+        for (GattSession session : mSessions) {
+            if (connected >= MAX_CONNECTIONS) {
+                break;
+            }
+            if (session.getState() == GattSession.State.Waiting) {
+                Log.i(TAG, "Connecting to " + session.getAddress());
+                session.connect(mContext, mAdapter.getRemoteDevice(session.getAddress()));
+                connected++;
+            }
+        }
+    }
+
+    /**
+     * Issues packet writes round robin, at most one per session and pass, until the
+     * in-flight limit is reached or no session has a packet ready.
+     */
+    synchronized void pump() {
+        int count = mSessions.size();
+        for (int i = 0; i < count && mWritesInFlight < MAX_WRITES_IN_FLIGHT; i++) {
+            int index = (mNextSession + i) % count;
+            GattSession session = mSessions.get(index);
+            if (session.hasPacketReady()) {
+                session.writeNextPacket();
+                mWritesInFlight++;
+                mNextSession = (index + 1) % count;
+            }
+        }
+    }
+
+    synchronized void onPacketWritten(GattSession session) {
+        if (session.isWriteInFlight()) {
+            mWritesInFlight--;
+        }
+        session.onPacketWritten();
+        pump();
+    }
+
+    synchronized void onSessionEnded(GattSession session) {
+        if (session.isWriteInFlight()) {
+            mWritesInFlight--;
+            session.onPacketWritten();
+        }
+        Log.i(TAG, session.getAddress() + " ended: " + session.getState());
+        connectWaitingSessions();
+        pump();
+    }
+
+    synchronized boolean isFinished() {
+        for (GattSession session : mSessions) {
+            if (!session.isEnded()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return One line per device: address, state and sent bytes.
+     */
+    synchronized List<String> getStatus() {
+        List<String> status = new ArrayList<>();
+        for (GattSession session : mSessions) {
+            status.add(session.getAddress() + ": " + session.getState() + ", " + session.getSentBytes() + " bytes");
+        }
+        return status;
+    }
+}
@@ -0,0 +1,89 @@
+package com.nordicsemi.ImageTransferDemo;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.util.Log;
+
+import java.util.UUID;
+
+/**
+ * The characteristics of the file transfer service, looked up once after service discovery.
+ * A device that lacks any of them, or the CCCD of a notifying one, is rejected right there
+ * instead of on the first write.
+ */
+final class FileTransferHandles {
+    private final static String TAG = "lbs_tag_handles";
+
+    final BluetoothGattService service;
+    final BluetoothGattCharacteristic rx;
+    final BluetoothGattCharacteristic tx;
+    final BluetoothGattCharacteristic cmdInfo;
+    final BluetoothGattCharacteristic incomingFile;
+    final BluetoothGattDescriptor txCccd;
+    final BluetoothGattDescriptor cmdInfoCccd;
+
+    private FileTransferHandles(BluetoothGattService service) {
+        this.service = service;
+        rx = service.getCharacteristic(ImageTransferService.RX_CHAR_UUID);
+        tx = service.getCharacteristic(ImageTransferService.TX_CHAR_UUID);
+        cmdInfo = service.getCharacteristic(ImageTransferService.CMD_INFO_CHAR_UUID);
+        incomingFile = service.getCharacteristic(ImageTransferService.INCOMING_FILE_CHAR_UUID);
+        txCccd = tx != null ? tx.getDescriptor(ImageTransferService.CCCD) : null;
+        cmdInfoCccd = cmdInfo != null ? cmdInfo.getDescriptor(ImageTransferService.CCCD) : null;
+    }
+
+    /**
+     * @return The {@link GattEventTrace} id of the characteristic.
+     */
+    static int traceId(UUID uuid) {
+        if (ImageTransferService.INCOMING_FILE_CHAR_UUID.equals(uuid)) {
+            return GattEventTrace.CHAR_INCOMING_FILE;
+        } else if (ImageTransferService.RX_CHAR_UUID.equals(uuid)) {
+            return GattEventTrace.CHAR_RX;
+        } else if (ImageTransferService.TX_CHAR_UUID.equals(uuid)) {
+            return GattEventTrace.CHAR_TX;
+        } else if (ImageTransferService.CMD_INFO_CHAR_UUID.equals(uuid)) {
+            return GattEventTrace.CHAR_CMD_INFO;
+        }
+        return GattEventTrace.CHAR_OTHER;
+    }
+
+    /**
+     * @return The handles, or null if the discovered services do not match, the reason is logged.
+     */
+    static FileTransferHandles resolve(BluetoothGatt gatt) {
+        BluetoothGattService service = gatt.getService(ImageTransferService.FILE_TRANSFER_SERVICE_UUID);
+        if (service == null) {
+            Log.w(TAG, "Service " + ImageTransferService.FILE_TRANSFER_SERVICE_UUID + " not found");
+            return null;
+        }
+        FileTransferHandles handles = new FileTransferHandles(service);
+        String missing = handles.findMissing();
+        if (missing != null) {
+            Log.w(TAG, missing + " not found");
+            return null;
+        }
+        return handles;
+    }
+
+    private String findMissing() {
+        if (rx == null) {
+            return "RX characteristic " + ImageTransferService.RX_CHAR_UUID;
+        }
+        if (tx == null) {
+            return "TX characteristic " + ImageTransferService.TX_CHAR_UUID;
+        }
+        if (cmdInfo == null) {
+            return "CMD_INFO characteristic " + ImageTransferService.CMD_INFO_CHAR_UUID;
+        }
+        if (incomingFile == null) {
+            return "Incoming file characteristic " + ImageTransferService.INCOMING_FILE_CHAR_UUID;
+        }
+        if (txCccd == null || cmdInfoCccd == null) {
+            return "Notification descriptor";
+        }
+        return null;
+    }
+}
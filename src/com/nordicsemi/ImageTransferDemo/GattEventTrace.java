@@ -0,0 +1,127 @@
+package com.nordicsemi.ImageTransferDemo;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Always-on recorder of the last {@link #CAPACITY} GATT events, each with a System.nanoTime stamp
+ * and two int fields. Recording allocates nothing and takes no lock: a writer claims a slot with one
+ * atomic increment, clears the slot's sequence number, fills the slot and then publishes the sequence
+ * number again. A dump reads the sequence number before and after the fields and skips slots that
+ * changed meanwhile. The fields are volatile like the sequence numbers, so neither side can move a
+ * field access across them.
+ * <p>
+ * Only plain Java is used here, so the decoder can be built with it off the device.
+ * <p>
+ * Dump format, decoded by {@link GattTraceDecoder}:
+ * <pre>
+ * "GTRC", version byte, varint event count,
+ * per event: type byte, varint nanoseconds since the previous event, zigzag varint a, zigzag varint b
+ * </pre>
+ */
+final class GattEventTrace {
+    static final int CAPACITY = 8192; // Power of two
+    static final byte[] MAGIC = {'G', 'T', 'R', 'C'};
+    static final int VERSION = 1;
+
+    // Event types and their fields
+    static final int EVENT_WRITE_ISSUED = 1; // a: characteristic, b: length
+    static final int EVENT_WRITE_COMPLETED = 2; // a: characteristic, b: status
+    static final int EVENT_NOTIFICATION = 3; // a: characteristic, b: first two bytes, big endian
+    static final int EVENT_MTU_CHANGED = 4; // a: MTU, b: status
+    static final int EVENT_RECEIVER_READY = 5; // a: OutgoingFileParams ordinal
+    static final int EVENT_RECEIVER_BUSY = 6;
+    static final int EVENT_CONNECTION_STATE = 7; // a: new state, b: status
+    static final int EVENT_CONNECTION_PARAMS = 8; // a: interval in 1.25 ms units, b: PHY
+    static final int EVENT_DESCRIPTOR_WRITE = 9; // a: characteristic, b: status
+
+    // Characteristic ids of the a field, see FileTransferHandles.traceId()
+    static final int CHAR_OTHER = 0;
+    static final int CHAR_RX = 1;
+    static final int CHAR_TX = 2;
+    static final int CHAR_CMD_INFO = 3;
+    static final int CHAR_INCOMING_FILE = 4;
+
+    private static final int MASK = CAPACITY - 1;
+
+    private final AtomicLong mNext = new AtomicLong();
+    private final AtomicLongArray mPublished = new AtomicLongArray(CAPACITY); // Sequence + 1 of the event in a slot
+    private final AtomicLongArray mTimestamps = new AtomicLongArray(CAPACITY);
+    private final AtomicIntegerArray mTypes = new AtomicIntegerArray(CAPACITY);
+    private final AtomicIntegerArray mA = new AtomicIntegerArray(CAPACITY);
+    private final AtomicIntegerArray mB = new AtomicIntegerArray(CAPACITY);
+
+    void record(int type, int a, int b) {
+        long sequence = mNext.getAndIncrement();
+        int slot = (int) (sequence & MASK);
+        mPublished.set(slot, 0); // Readers skip the slot until it is complete again
+        mTimestamps.set(slot, System.nanoTime());
+        mTypes.set(slot, type);
+        mA.set(slot, a);
+        mB.set(slot, b);
+        mPublished.set(slot, sequence + 1);
+    }
+
+    /**
+     * Writes the recorded events, oldest first. Recording goes on while this runs.
+     */
+    void dump(File file) throws IOException {
+        long end = mNext.get();
+        long start = Math.max(end - CAPACITY, 0);
+        int count = 0;
+        long[] timestamps = new long[(int) (end - start)];
+        int[] types = new int[timestamps.length];
+        int[] as = new int[timestamps.length];
+        int[] bs = new int[timestamps.length];
+        for (long sequence = start; sequence < end; sequence++) {
+            int slot = (int) (sequence & MASK);
+            if (mPublished.get(slot) != sequence + 1) {
+                continue;
+            }
+            timestamps[count] = mTimestamps.get(slot);
+            types[count] = mTypes.get(slot);
+            as[count] = mA.get(slot);
+            bs[count] = mB.get(slot);
+            if (mPublished.get(slot) == sequence + 1) {
+                count++;
+            }
+        }
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            out.write(MAGIC);
+            out.write(VERSION);
+            writeVarint(out, count);
+            long previous = count > 0 ? timestamps[0] : 0;
+            for (int i = 0; i < count; i++) {
+                out.write(types[i]);
+                // Concurrent writers may stamp slightly out of order, the decoded times never go back
+                long timestamp = Math.max(timestamps[i], previous);
+                writeVarint(out, timestamp - previous);
+                writeVarint(out, zigzag(as[i]));
+                writeVarint(out, zigzag(bs[i]));
+                previous = timestamp;
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static long zigzag(int value) {
+        return ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL;
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
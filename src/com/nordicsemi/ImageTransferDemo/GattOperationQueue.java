@@ -0,0 +1,284 @@
+package com.nordicsemi.ImageTransferDemo;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+
+/**
+ * Runs the GATT operations of one connection one at a time. Android only accepts a new
+ * operation once the callback of the previous one arrived and silently rejects it otherwise,
+ * so every write, descriptor write and MTU request goes through this queue. An operation ends
+ * with its callback, a timeout, or after it was rejected {@link #MAX_ATTEMPTS} times.
+ * After a timeout the queue holds back for up to {@link #LATE_CALLBACK_WAIT_MS}: the stack may
+ * still be busy with the operation, and its late callback is dropped instead of completing the
+ * next operation of the same kind. Control operations have a higher priority than file data and overtake queued packets.
+ * <p>
+ * Completion callbacks run without the queue lock held, they may enqueue the next operation.
+ */
+class GattOperationQueue {
+    static final int STATUS_TIMEOUT = -1;
+    static final int STATUS_REJECTED = -2;
+    private static final long OPERATION_TIMEOUT_MS = 2000;
+    private static final long LATE_CALLBACK_WAIT_MS = 2000;
+    private static final long RETRY_DELAY_MS = 10;
+    private static final int MAX_ATTEMPTS = 5;
+
+    enum Priority {High, Normal}
+
+    interface Callback {
+        /**
+         * @param status BluetoothGatt.GATT_SUCCESS, a GATT error, {@link #STATUS_TIMEOUT} or {@link #STATUS_REJECTED}.
+         */
+        void onComplete(int status);
+    }
+
+    static final class Operation {
+        enum Type {WriteCharacteristic, WriteDescriptor, RequestMtu}
+
+        final Type type;
+        final Priority priority;
+        private final BluetoothGattCharacteristic mCharacteristic;
+        private final BluetoothGattDescriptor mDescriptor;
+        private final byte[] mValue;
+        private final int mIntValue;
+        private final Callback mCallback;
+        private int mAttempts;
+
+        private Operation(Type type, Priority priority, BluetoothGattCharacteristic characteristic,
+                          BluetoothGattDescriptor descriptor, byte[] value, int intValue, Callback callback) {
+            this.type = type;
+            this.priority = priority;
+            mCharacteristic = characteristic;
+            mDescriptor = descriptor;
+            mValue = value;
+            mIntValue = intValue;
+            mCallback = callback;
+        }
+
+        /**
+         * The value is not copied, the caller must not change it until the operation completed.
+         */
+        static Operation writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value, int writeType,
+                                             Priority priority, Callback callback) {
+            return new Operation(Type.WriteCharacteristic, priority, characteristic, null, value, writeType, callback);
+        }
+
+        static Operation writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value, Callback callback) {
+            return new Operation(Type.WriteDescriptor, Priority.High, null, descriptor, value, 0, callback);
+        }
+
+        static Operation requestMtu(int mtu, Callback callback) {
+            return new Operation(Type.RequestMtu, Priority.High, null, null, null, mtu, callback);
+        }
+
+        private boolean matches(Type callbackType, UUID characteristicUuid) {
+            return type == callbackType && (characteristicUuid == null || characteristicUuid.equals(getCharacteristicUuid()));
+        }
+
+        private UUID getCharacteristicUuid() {
+            if (mCharacteristic != null) {
+                return mCharacteristic.getUuid();
+            }
+            return mDescriptor != null ? mDescriptor.getCharacteristic().getUuid() : null;
+        }
+
+        private boolean start(BluetoothGatt gatt) {
+            switch (type) {
+                case WriteCharacteristic:
+                    mCharacteristic.setValue(mValue);
+                    mCharacteristic.setWriteType(mIntValue);
+                    return gatt.writeCharacteristic(mCharacteristic);
+                case WriteDescriptor:
+                    mDescriptor.setValue(mValue);
+                    return gatt.writeDescriptor(mDescriptor);
+                case RequestMtu:
+                    return gatt.requestMtu(mIntValue);
+                default:
+                    return false;
+            }
+        }
+
+        private void complete(int status) {
+            if (mCallback != null) {
+                mCallback.onComplete(status);
+            }
+        }
+    }
+
+    private final Handler mHandler;
+    private final GattEventTrace mTrace;
+    private BluetoothGatt mGatt;
+    private final ArrayDeque<Operation> mHighPriority = new ArrayDeque<>();
+    private final ArrayDeque<Operation> mNormalPriority = new ArrayDeque<>();
+    private Operation mCurrent;
+    private long mCurrentDeadline;
+    private boolean mTimeoutPosted;
+    private Operation mTimedOut; // Its callback may still arrive, nothing starts until then
+    private long mTimedOutDeadline;
+
+    private final Runnable mRetry = new Runnable() {
+        @Override
+        public void run() {
+            runNext();
+        }
+    };
+
+    // One runnable for all operations that is only reposted when it fires, so a packet
+    // write does not touch the looper
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            onTimeout();
+        }
+    };
+
+    GattOperationQueue(Handler handler, GattEventTrace trace) {
+        mHandler = handler;
+        mTrace = trace;
+    }
+
+    synchronized void setGatt(BluetoothGatt gatt) {
+        mGatt = gatt;
+    }
+
+    void enqueue(Operation operation) {
+        synchronized (this) {
+            (operation.priority == Priority.High ? mHighPriority : mNormalPriority).add(operation);
+        }
+        runNext();
+    }
+
+    /**
+     * Drops all operations, e.g. when the link is lost. Their callbacks are not called.
+     */
+    synchronized void clear() {
+        mHighPriority.clear();
+        mNormalPriority.clear();
+        mCurrent = null;
+        mTimedOut = null;
+        mHandler.removeCallbacks(mTimeout);
+        mTimeoutPosted = false;
+        mHandler.removeCallbacks(mRetry);
+    }
+
+    synchronized boolean isIdle() {
+        return mCurrent == null && mHighPriority.isEmpty() && mNormalPriority.isEmpty();
+    }
+
+    private void runNext() {
+        while (true) {
+            Operation rejected;
+            synchronized (this) {
+                if (mCurrent != null) {
+                    return;
+                }
+                if (mTimedOut != null) {
+                    long left = mTimedOutDeadline - SystemClock.uptimeMillis();
+                    if (left > 0) {
+                        mHandler.removeCallbacks(mRetry);
+                        mHandler.postDelayed(mRetry, left);
+                        return;
+                    }
+                    mTimedOut = null;
+                }
+                Operation operation = mHighPriority.poll();
+                if (operation == null) {
+                    operation = mNormalPriority.poll();
+                }
+                if (operation == null) {
+                    return;
+                }
+                if (mGatt != null && operation.start(mGatt)) {
+                    if (operation.type == Operation.Type.WriteCharacteristic) {
+                        mTrace.record(GattEventTrace.EVENT_WRITE_ISSUED,
+                                FileTransferHandles.traceId(operation.mCharacteristic.getUuid()), operation.mValue.length);
+                    }
+                    mCurrent = operation;
+                    mCurrentDeadline = SystemClock.uptimeMillis() + OPERATION_TIMEOUT_MS;
+                    if (!mTimeoutPosted) {
+                        mTimeoutPosted = true;
+                        mHandler.postDelayed(mTimeout, OPERATION_TIMEOUT_MS);
+                    }
+                    return;
+                }
+                if (mGatt != null && ++operation.mAttempts < MAX_ATTEMPTS) {
+                    // The stack is still busy, e.g. with an operation that timed out here
+                    (operation.priority == Priority.High ? mHighPriority : mNormalPriority).addFirst(operation);
+                    mHandler.removeCallbacks(mRetry);
+                    mHandler.postDelayed(mRetry, RETRY_DELAY_MS);
+                    return;
+                }
+                rejected = operation;
+            }
+            rejected.complete(STATUS_REJECTED);
+        }
+    }
+
+    private void onTimeout() {
+        Operation operation;
+        synchronized (this) {
+            mTimeoutPosted = false;
+            operation = mCurrent;
+            if (operation == null) {
+                return;
+            }
+            long left = mCurrentDeadline - SystemClock.uptimeMillis();
+            if (left > 0) {
+                // Started after this timeout was posted
+                mTimeoutPosted = true;
+                mHandler.postDelayed(mTimeout, left);
+                return;
+            }
+            mCurrent = null;
+            mTimedOut = operation;
+            mTimedOutDeadline = SystemClock.uptimeMillis() + LATE_CALLBACK_WAIT_MS;
+        }
+        operation.complete(STATUS_TIMEOUT);
+        runNext();
+    }
+
+    /**
+     * Ends the current operation if the callback belongs to it. The late callback of an operation
+     * that timed out is dropped.
+     *
+     * @return false if no such operation was running.
+     */
+    private boolean complete(Operation.Type type, UUID characteristicUuid, int status) {
+        Operation operation;
+        synchronized (this) {
+            if (mTimedOut != null && mTimedOut.matches(type, characteristicUuid)) {
+                // Nothing was started after it, so the callback is its own
+                mTimedOut = null;
+                operation = null;
+            } else {
+                operation = mCurrent;
+                if (operation == null || !operation.matches(type, characteristicUuid)) {
+                    return false;
+                }
+                mCurrent = null;
+            }
+        }
+        if (operation != null) {
+            operation.complete(status);
+        }
+        runNext();
+        return true;
+    }
+
+    boolean onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
+        return complete(Operation.Type.WriteCharacteristic, characteristic.getUuid(), status);
+    }
+
+    boolean onDescriptorWrite(BluetoothGattDescriptor descriptor, int status) {
+        return complete(Operation.Type.WriteDescriptor, descriptor.getCharacteristic().getUuid(), status);
+    }
+
+    boolean onMtuChanged(int status) {
+        return complete(Operation.Type.RequestMtu, null, status);
+    }
+}
@@ -0,0 +1,280 @@
+package com.nordicsemi.ImageTransferDemo;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * One connection of a fan-out transfer with its own GATT client and state machine:
+ * connect, MTU, discovery, notifications, SetIncomingFileParams, then bulk windows paced by
+ * the receiver's ReadyToReceive until it reports TransmissionFinished. The packet writes
+ * themselves are issued by the {@link FanOutScheduler}, all state is guarded by its lock.
+ * Every GATT operation goes through the session's {@link GattOperationQueue}, so a packet
+ * never overtakes the file header and a ReadyToReceive that arrives before the header's write
+ * response does not stall the session.
+ */
+class GattSession {
+    private final static String TAG = "lbs_tag_session";
+
+    enum State {Waiting, Connecting, Discovering, EnablingNotifications, Announcing, WaitingForReceiver, Sending,
+        Finishing, Done, Failed}
+
+    private final String mAddress;
+    private final FanOutScheduler mScheduler;
+    private final SharedPayload mPayload;
+    private final GattOperationQueue mQueue;
+    private BluetoothGatt mGatt;
+    private FileTransferHandles mHandles;
+    private State mState = State.Waiting;
+    private int mMtu = ImageTransferService.defaultMtu;
+    private int mOffset;
+    private int mWindow = BulkWindowController.DEFAULT_MAX_WINDOW;
+    private int mWindowWritten;
+    private boolean mWindowNegotiated;
+    private boolean mWriteInFlight;
+    private byte[] mPacket = new byte[0];
+    private final BleProtocol.CmdInfoMessage mCmdInfo = new BleProtocol.CmdInfoMessage(); // GATT callbacks only
+
+    GattSession(String address, FanOutScheduler scheduler, SharedPayload payload, Handler handler, GattEventTrace trace) {
+        mAddress = address;
+        mScheduler = scheduler;
+        mPayload = payload;
+        mQueue = new GattOperationQueue(handler, trace);
+    }
+
+    String getAddress() {
+        return mAddress;
+    }
+
+    State getState() {
+        return mState;
+    }
+
+    int getSentBytes() {
+        return mOffset;
+    }
+
+    boolean isEnded() {
+        return mState == State.Done || mState == State.Failed;
+    }
+
+    boolean isWriteInFlight() {
+        return mWriteInFlight;
+    }
+
+    void connect(Context context, BluetoothDevice device) {
+        mState = State.Connecting;
+        mGatt = device.connectGatt(context, false, mGattCallback);
+        mQueue.setGatt(mGatt);
+    }
+
+    private void fail(String reason) {
+        Log.w(TAG, mAddress + ": " + reason + " in state " + mState);
+        mState = State.Failed;
+        if (mGatt != null) {
+            mGatt.disconnect();
+        }
+    }
+
+    /**
+     * @return true if the session can take the next packet of its window.
+     */
+    boolean hasPacketReady() {
+        return mState == State.Sending && !mWriteInFlight
+                && mOffset < mPayload.length() && mWindowWritten < mWindow;
+    }
+
+    /**
+     * Queues the next packet, it fills the ATT payload but never overshoots the window.
+     * The packet array is reused, there is never more than one write in flight.
+     */
+    void writeNextPacket() {
+        int length = Math.min(mMtu - 3, Math.min(mPayload.length() - mOffset, mWindow - mWindowWritten));
+        if (mPacket.length != length) {
+            mPacket = new byte[length];
+        }
+        mPayload.read(mOffset, mPacket, length);
+        mWriteInFlight = true;
+        mOffset += length;
+        mWindowWritten += length;
+        mQueue.enqueue(GattOperationQueue.Operation.writeCharacteristic(mHandles.incomingFile, mPacket,
+                BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, GattOperationQueue.Priority.Normal, mPacketWritten));
+    }
+
+    /**
+     * Called by the scheduler when the stack is done with the packet in flight.
+     */
+    void onPacketWritten() {
+        mWriteInFlight = false;
+        if (mState != State.Sending) {
+            return;
+        }
+        if (mOffset == mPayload.length()) {
+            mState = State.Finishing;
+        } else if (mWindowWritten >= mWindow) {
+            mState = State.WaitingForReceiver;
+        }
+    }
+
+    private void onReadyToReceive(BleProtocol.CmdInfoMessage message) {
+        if (!mWindowNegotiated) {
+            mWindowNegotiated = true;
+            if (message.hasCount()) {
+                int maxWindow = message.getCount();
+                if (maxWindow > 0) {
+                    // The receiver's buffer, a larger window would overrun it
+                    mWindow = maxWindow;
+                }
+            }
+        }
+        mWindowWritten = 0;
+        if (mOffset < mPayload.length()) {
+            mState = State.Sending;
+        }
+    }
+
+    private final GattOperationQueue.Callback mMtuRequested = new GattOperationQueue.Callback() {
+        @Override
+        public void onComplete(int status) {
+            synchronized (mScheduler) {
+                if (mState == State.Discovering && !mGatt.discoverServices()) {
+                    fail("Service discovery not started");
+                }
+            }
+        }
+    };
+
+    private final GattOperationQueue.Callback mNotificationsEnabled = new GattOperationQueue.Callback() {
+        @Override
+        public void onComplete(int status) {
+            synchronized (mScheduler) {
+                if (mState != State.EnablingNotifications) {
+                    return;
+                }
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    fail("Notifications not enabled");
+                    return;
+                }
+                mState = State.Announcing;
+                mQueue.enqueue(GattOperationQueue.Operation.writeCharacteristic(mHandles.rx,
+                        mPayload.buildIncomingFileCommand(), BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT,
+                        GattOperationQueue.Priority.High, mHeaderWritten));
+            }
+        }
+    };
+
+    private final GattOperationQueue.Callback mHeaderWritten = new GattOperationQueue.Callback() {
+        @Override
+        public void onComplete(int status) {
+            synchronized (mScheduler) {
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    fail("File header rejected");
+                    return;
+                }
+                if (mState == State.Announcing) {
+                    mState = State.WaitingForReceiver;
+                }
+                // The ReadyToReceive may have come first
+                mScheduler.pump();
+            }
+        }
+    };
+
+    private final GattOperationQueue.Callback mPacketWritten = new GattOperationQueue.Callback() {
+        @Override
+        public void onComplete(int status) {
+            synchronized (mScheduler) {
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    fail("Packet write failed: " + status);
+                }
+                mScheduler.onPacketWritten(GattSession.this);
+            }
+        }
+    };
+
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            synchronized (mScheduler) {
+                if (newState == BluetoothProfile.STATE_CONNECTED && mState == State.Connecting) {
+                    mState = State.Discovering;
+                    mQueue.enqueue(GattOperationQueue.Operation.requestMtu(ImageTransferService.targetMtu, mMtuRequested));
+                } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                    if (!isEnded()) {
+                        fail("Disconnected");
+                    }
+                    mQueue.clear();
+                    mQueue.setGatt(null);
+                    gatt.close();
+                    mScheduler.onSessionEnded(GattSession.this);
+                }
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            synchronized (mScheduler) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    mMtu = mtu;
+                }
+                mQueue.onMtuChanged(status);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            synchronized (mScheduler) {
+                mHandles = status == BluetoothGatt.GATT_SUCCESS ? FileTransferHandles.resolve(gatt) : null;
+                if (mHandles == null) {
+                    fail("File transfer service not found");
+                    return;
+                }
+                mState = State.EnablingNotifications;
+                gatt.setCharacteristicNotification(mHandles.cmdInfo, true);
+                mQueue.enqueue(GattOperationQueue.Operation.writeDescriptor(mHandles.cmdInfoCccd,
+                        BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, mNotificationsEnabled));
+            }
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            synchronized (mScheduler) {
+                mQueue.onDescriptorWrite(descriptor, status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            synchronized (mScheduler) {
+                if (!mQueue.onCharacteristicWrite(characteristic, status)) {
+                    Log.w(TAG, mAddress + ": unexpected write response for " + characteristic.getUuid());
+                }
+            }
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            if (!ImageTransferService.CMD_INFO_CHAR_UUID.equals(characteristic.getUuid())
+                    || !mCmdInfo.wrap(characteristic.getValue())
+                    || mCmdInfo.getCommand() != BleProtocol.CmdInfoCharCommands.setOutgoingFileParams) {
+                return;
+            }
+            synchronized (mScheduler) {
+                if (mCmdInfo.getOutgoingFileParams() == BleProtocol.OutgoingFileParams.ReadyToReceive) {
+                    onReadyToReceive(mCmdInfo);
+                    mScheduler.pump();
+                } else if (mCmdInfo.getOutgoingFileParams() == BleProtocol.OutgoingFileParams.TransmissionFinished) {
+                    Log.i(TAG, mAddress + ": " + mPayload.getName() + " delivered");
+                    mState = State.Done;
+                    gatt.disconnect();
+                }
+            }
+        }
+    };
+}
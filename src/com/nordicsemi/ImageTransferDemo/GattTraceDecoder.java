@@ -0,0 +1,191 @@
+package com.nordicsemi.ImageTransferDemo;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Offline decoder of a {@link GattEventTrace} dump. It prints the file packets completed per
+ * connection interval of every transfer and how often each count occurred, a phone that sends
+ * a single packet per interval shows up as a peak at 1. Plain Java, run it on a desktop with
+ * <pre>
+ * javac -d out GattEventTrace.java GattTraceDecoder.java
+ * java -cp out com.nordicsemi.ImageTransferDemo.GattTraceDecoder gatt_trace.bin [interval_ms]
+ * </pre>
+ * The interval is taken from the setConnectionParams events in the trace, the argument is used
+ * before the first one.
+ */
+public class GattTraceDecoder {
+    private static final float DEFAULT_INTERVAL_MS = 7.5f;
+    private static final float IDLE_INTERVALS = 50; // A gap this long ends a transfer
+
+    static final class Event {
+        final int type;
+        final long nanos; // Since the first event
+        final int a;
+        final int b;
+
+        Event(int type, long nanos, int a, int b) {
+            this.type = type;
+            this.nanos = nanos;
+            this.a = a;
+            this.b = b;
+        }
+    }
+
+    static List<Event> read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] magic = new byte[GattEventTrace.MAGIC.length];
+        data.readFully(magic);
+        for (int i = 0; i < magic.length; i++) {
+            if (magic[i] != GattEventTrace.MAGIC[i]) {
+                throw new IOException("Not a GATT trace");
+            }
+        }
+        int version = data.readUnsignedByte();
+        if (version != GattEventTrace.VERSION) {
+            throw new IOException("Unsupported trace version " + version);
+        }
+        long count = readVarint(data);
+        List<Event> events = new ArrayList<>();
+        long nanos = 0;
+        for (long i = 0; i < count; i++) {
+            int type = data.readUnsignedByte();
+            nanos += readVarint(data);
+            events.add(new Event(type, nanos, unzigzag(readVarint(data)), unzigzag(readVarint(data))));
+        }
+        return events;
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static int unzigzag(long value) {
+        int v = (int) value;
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static boolean isFilePacket(Event event) {
+        return event.type == GattEventTrace.EVENT_WRITE_COMPLETED && event.a == GattEventTrace.CHAR_INCOMING_FILE;
+    }
+
+    /**
+     * Counts the file packets per connection interval. A transfer starts with its first packet and
+     * ends after {@link #IDLE_INTERVALS} intervals without one, the intervals in between are counted
+     * even when empty.
+     *
+     * @return Per transfer, the packet count of every interval.
+     */
+    static List<int[]> packetsPerInterval(List<Event> events, float defaultIntervalMs) {
+        List<int[]> transfers = new ArrayList<>();
+        long intervalNanos = (long) (defaultIntervalMs * 1000000);
+        List<Integer> counts = null;
+        long windowStart = 0;
+        long lastPacket = 0;
+        for (Event event : events) {
+            if (event.type == GattEventTrace.EVENT_CONNECTION_PARAMS && event.a > 0) {
+                intervalNanos = event.a * 1250000L;
+            }
+            if (counts != null && event.nanos - lastPacket > IDLE_INTERVALS * intervalNanos) {
+                transfers.add(toArray(counts));
+                counts = null;
+            }
+            if (!isFilePacket(event)) {
+                continue;
+            }
+            if (counts == null) {
+                counts = new ArrayList<>();
+                windowStart = event.nanos;
+            }
+            int index = (int) ((event.nanos - windowStart) / intervalNanos);
+            while (counts.size() <= index) {
+                counts.add(0);
+            }
+            counts.set(index, counts.get(index) + 1);
+            lastPacket = event.nanos;
+        }
+        if (counts != null) {
+            transfers.add(toArray(counts));
+        }
+        return transfers;
+    }
+
+    private static int[] toArray(List<Integer> counts) {
+        int[] result = new int[counts.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = counts.get(i);
+        }
+        return result;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: GattTraceDecoder <trace file> [interval_ms]");
+            System.exit(2);
+        }
+        float intervalMs = args.length > 1 ? Float.parseFloat(args[1]) : DEFAULT_INTERVAL_MS;
+        List<Event> events;
+        InputStream in = new BufferedInputStream(new FileInputStream(args[0]));
+        try {
+            events = read(in);
+        } catch (EOFException e) {
+            throw new IOException("Truncated trace", e);
+        } finally {
+            in.close();
+        }
+
+        int[] typeCounts = new int[256];
+        for (Event event : events) {
+            typeCounts[event.type]++;
+        }
+        System.out.println(events.size() + " events over "
+                + String.format(Locale.US, "%.1f", events.isEmpty() ? 0 : events.get(events.size() - 1).nanos / 1e6) + " ms");
+        for (int type = 0; type < typeCounts.length; type++) {
+            if (typeCounts[type] > 0) {
+                System.out.println("  type " + type + ": " + typeCounts[type]);
+            }
+        }
+
+        List<int[]> transfers = packetsPerInterval(events, intervalMs);
+        for (int t = 0; t < transfers.size(); t++) {
+            int[] counts = transfers.get(t);
+            int max = 0;
+            int packets = 0;
+            for (int count : counts) {
+                max = Math.max(max, count);
+                packets += count;
+            }
+            int[] histogram = new int[max + 1];
+            for (int count : counts) {
+                histogram[count]++;
+            }
+            System.out.println("Transfer " + (t + 1) + ": " + packets + " packets in " + counts.length + " intervals, "
+                    + String.format(Locale.US, "%.2f", (float) packets / counts.length) + " per interval");
+            for (int count = 0; count <= max; count++) {
+                if (histogram[count] > 0) {
+                    System.out.println("  " + count + " packets: " + histogram[count] + " intervals");
+                }
+            }
+            StringBuilder timeline = new StringBuilder("  Per interval:");
+            for (int count : counts) {
+                timeline.append(' ').append(count);
+            }
+            System.out.println(timeline);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.nordicsemi.ImageTransferDemo;
+
+import android.util.Log;
+
+/**
+ * Reassembles the images the kit sends as TX_CHAR_UUID notifications, each announced by a
+ * setIncomingFileParams with its size. Payloads are copied straight into a buffer that is only
+ * reallocated when a larger image is announced, so a stream of frames allocates nothing.
+ * Two buffers alternate: the last complete image stays untouched while the next one arrives.
+ * <p>
+ * {@link #start(int)}, {@link #onData(byte[])} and {@link #reset()} are called on the GATT callback
+ * thread, the getters of the complete image on any thread.
+ */
+final class ImageReceiver {
+    private final static String TAG = "lbs_tag_receiver";
+    static final int MAX_IMAGE_SIZE = 4 * 1024 * 1024;
+
+    // GATT callback thread only
+    private byte[] mReceiving = new byte[0];
+    private int mExpected = -1; // -1 while no image is announced
+    private int mReceived;
+    private long mAnnouncedNanos;
+
+    // The last complete image, swapped with mReceiving under the lock
+    private byte[] mImage = new byte[0];
+    private int mImageLength;
+    private long mImageNanos;
+    private int mImageCount;
+
+    /**
+     * Prepares for an announced image, a partly received one is dropped.
+     *
+     * @return false if the size is not plausible, its data is then ignored.
+     */
+    boolean start(int size) {
+        if (mExpected >= 0 && mReceived < mExpected) {
+            Log.w(TAG, "Image dropped after " + mReceived + " of " + mExpected + " bytes");
+        }
+        if (size <= 0 || size > MAX_IMAGE_SIZE) {
+            Log.w(TAG, "Image of " + size + " bytes ignored");
+            mExpected = -1;
+            return false;
+        }
+        if (mReceiving.length < size) {
+            mReceiving = new byte[size];
+        }
+        mExpected = size;
+        mReceived = 0;
+        // The kit announces the image right before its first packet, the same start the speed table uses
+        mAnnouncedNanos = System.nanoTime();
+        return true;
+    }
+
+    /**
+     * Copies a notification payload into the image being received.
+     *
+     * @return true if it completed the image.
+     */
+    boolean onData(byte[] value) {
+        if (mExpected < 0 || value == null) {
+            return false;
+        }
+        int length = Math.min(value.length, mExpected - mReceived);
+        if (length < value.length) {
+            Log.w(TAG, (value.length - length) + " bytes past the announced size dropped");
+        }
+        System.arraycopy(value, 0, mReceiving, mReceived, length);
+        mReceived += length;
+        if (mReceived < mExpected) {
+            return false;
+        }
+        long elapsedNanos = Math.max(System.nanoTime() - mAnnouncedNanos, 1);
+        synchronized (this) {
+            byte[] image = mImage;
+            mImage = mReceiving;
+            mImageLength = mExpected;
+            mImageNanos = elapsedNanos;
+            mImageCount++;
+            mReceiving = image;
+        }
+        mExpected = -1;
+        return true;
+    }
+
+    /**
+     * Drops a partly received image, e.g. when the link is lost.
+     */
+    void reset() {
+        mExpected = -1;
+        mReceived = 0;
+    }
+
+    /**
+     * @return The last complete image, valid for {@link #getImageLength()} bytes. The array is
+     *         reused for the image after next, copy or decode it right away.
+     */
+    synchronized byte[] getImage() {
+        return mImage;
+    }
+
+    synchronized int getImageLength() {
+        return mImageLength;
+    }
+
+    /**
+     * @return Time from the announcement until the last byte of the image arrived.
+     */
+    synchronized long getImageNanos() {
+        return mImageNanos;
+    }
+
+    /**
+     * @return Images received since the service was created.
+     */
+    synchronized int getImageCount() {
+        return mImageCount;
+    }
+
+    /**
+     * @return Throughput of the last image in kilobits per second, as in the readme's speed table.
+     */
+    synchronized int getImageKbps() {
+        return mImageNanos > 0 ? (int) (mImageLength * 8L * 1000000L / mImageNanos) : 0;
+    }
+}
@@ -7,27 +7,32 @@ import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
-import java.util.Queue;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Service for managing connection and data communication with a GATT server hosted on a
@@ -42,13 +47,54 @@ public class ImageTransferService extends Service {
     private BluetoothGatt mBluetoothGatt;
     private int mConnectionState = STATE_DISCONNECTED;
     private volatile boolean isWriting;
-    private Queue<byte[]> sendQueue; //To be inited with sendQueue = new ConcurrentLinkedQueue<String>();
+    private volatile SendCursor mSendCursor;
+    private boolean mWaitingForData; // Sending paused until the cursor's producer delivers
+    private volatile FileTransferHandles mHandles; // Resolved in onServicesDiscovered, null until then
     private BluetoothGattCharacteristic FtChar;
-    private int current_mtu_size = 20;
+    private volatile int current_mtu_size = defaultMtu;
     private int bulk_data_written = 0;
+    private final BulkWindowController mBulkWindow = new BulkWindowController();
+    private final RetransmitBuffer mRetransmit = new RetransmitBuffer();
+    private boolean mWindowCrcEnabled;
+    private boolean mWindowCrcPending; // Waiting for the receiver to check the window CRC
+    private boolean mBulkWindowNegotiated;
+    private long mBulkWindowSentNanos; // When the last packet of the current window was written, 0 while sending
     private int total_transmission_bytes = 0;
-    private int transmitted_bytes = 0;
     private boolean isReceiverReady;
+    private int mCredits = CREDITS_UNLIMITED; // Bytes the receiver can still take in Continuous_mode
+    private long mTransferStartNanos;
+    private volatile int mLinkRateBps = DEFAULT_LINK_RATE_BPS;
+    private volatile TransferStats mTransferStats;
+    private SharedPreferences mCheckpointPrefs;
+    private SharedPreferences mLinkProfilePrefs;
+    private TransferCheckpoint mCheckpoint; // Of the transfer in progress, null if there is none
+    private BlockSignature.Builder mPendingSignature; // Stored once the delta upload in progress completes
+    private File mPendingSignatureFile;
+    private byte[] mPendingContentHash; // Recorded as delivered once the upload in progress completes
+    private Future<byte[]> mContentHashing; // Hash of the upload in progress while it is computed on the queue worker
+    private PreparedUpload mContentQuery; // Upload waiting for the receiver's ContentStatus
+    private TransferQueue.Entry mQueueEntryOnAir; // Queued file of the upload in progress, null if it was not queued
+    private final TransferQueue mTransferQueue = new TransferQueue();
+    private final ExecutorService mQueueExecutor = Executors.newSingleThreadExecutor();
+    private volatile PreparedUpload mPrefetched; // Next queued file, only changed by the queue worker
+    private volatile FanOutScheduler mFanOut;
+    private boolean mFanOutLoading; // The payload of a fan-out is being read on the queue worker
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final GattEventTrace mGattTrace = new GattEventTrace();
+    private final GattOperationQueue mGattQueue = new GattOperationQueue(mHandler, mGattTrace);
+    private final TransferMetrics mMetrics = new TransferMetrics(mHandler);
+    private long mPacketQueuedNanos; // Of the packet in flight, there is only one
+    private boolean mPacketRetransmitted;
+    private volatile LinkProfile mLinkProfile; // Last good settings of the connected device, null if unknown
+    private final BleProtocol.CmdInfoMessage mCmdInfoMessage = new BleProtocol.CmdInfoMessage(); // Binder thread of the GATT callbacks only
+    private final ImageReceiver mImageReceiver = new ImageReceiver();
+    private final AtomicBoolean mImageReceivedPosted = new AtomicBoolean();
+    private volatile int mLinkPhy = LinkProfile.PHY_1M; // As reported in setConnectionParams
+    private volatile int mLinkIntervalUnits;
+    private volatile int mConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    private volatile ConnectionTrace mConnectionTrace; // Of the current or last connection
+    private volatile boolean mAutoConnect; // The client reconnects in the background after a disconnect
+    private volatile boolean mMtuRequested;
 
 
     private static final int STATE_DISCONNECTED = 0;
@@ -71,8 +117,10 @@ public class ImageTransferService extends Service {
             "com.nordicsemi.ImageTransferDemo.EXTRA_DATA";
     public final static String DEVICE_DOES_NOT_SUPPORT_FILE_TRANSFER =
             "com.nordicsemi.ImageTransferDemo.DEVICE_DOES_NOT_SUPPORT_IMAGE_TRANSFER";
-    public final static String ACTION_GATT_TRANSFER_FINISHED =
-            "com.nordicsemi.ImageTransferDemo.ACTION_GATT_TRANSFER_FINISHED";
+    public final static String ACTION_LINK_TUNED =
+            "com.nordicsemi.ImageTransferDemo.ACTION_LINK_TUNED";
+    public final static String ACTION_CONNECTION_READY =
+            "com.nordicsemi.ImageTransferDemo.ACTION_CONNECTION_READY";
 
     public static final UUID CCCD = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
     public enum TransmissionMode {Fragmented_mode, Continuous_mode}
@@ -85,9 +133,30 @@ public class ImageTransferService extends Service {
 
     public static final int targetMtu = 243;
     public static final int smallestSupportedMtu = 123;
-    private static final  int target_mtu_payload_size = targetMtu - 3;
-    private static final  int smallestSupported_mtu_payload_size = smallestSupportedMtu - 3;
-    private static final int BULK_DATA_LEN = 136 * target_mtu_payload_size; // This cache can store up to 68 payloads
+    public static final int defaultMtu = 23;
+    private static final int MTU_REQUEST_THRESHOLD = 64; // A smaller MTU reported by the peer is raised to targetMtu
+    static final int ATT_HEADER_SIZE = 3;
+    private static final int BLE_PHY_2M = 2; // TX PHY in setConnectionParams
+    private static final String GATT_TRACE_FILE = "gatt_trace.bin";
+    // Operation byte (offset 37) of the SetIncomingFileParams header, the low nibble holds the CompressionCodec ID
+    public static final byte FILE_OP_SIZE_IN_TRAILER = (byte) 0x80; // Size is sent in a SetIncomingFileTrailer command after the last packet
+    public static final byte FILE_OP_DELTA = 0x40; // Content is a DeltaEncoder delta against the receiver's previous version of the file
+    public static final byte FILE_OP_ARCHIVE = 0x20; // Content is a SolidArchive of many files
+    private static final int INCOMING_FILE_SIZE_UNKNOWN = 0xFFFFFFFF;
+    private static final String DELTA_CODEC_NAME = "delta";
+    private static final String SIGNATURE_DIR = "signatures";
+    private static final String DELIVERED_CONTENT_DIR = "delivered";
+    // Receivers that don't know QueryContentHash never answer it
+    private static final long CONTENT_QUERY_TIMEOUT_MS = 1000;
+    private static final int CREDITS_UNLIMITED = -1;
+    // Flags byte of the first ReadyToReceive, offset 6
+    private static final byte RECEIVER_FLAG_WINDOW_CRC = 0x01;
+    // Status byte of a ReadyToReceive that answers a SetWindowCrc, offset 2
+    private static final byte WINDOW_STATUS_OK = 0;
+    private static final byte WINDOW_STATUS_BAD = 1;
+    private static final int MAX_WINDOW_RETRIES = 3;
+    private static final int DEFAULT_LINK_RATE_BPS = 100000;
+    private static final int MIN_LINK_RATE_SAMPLE_BYTES = 4 * 1024;
     private TransmissionMode m_transmissionMode;
 
     // Implements callback methods for GATT events that the app cares about.  For example,
@@ -96,11 +165,13 @@ public class ImageTransferService extends Service {
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
             String intentAction;
+            mGattTrace.record(GattEventTrace.EVENT_CONNECTION_STATE, newState, status);
 
             if (newState == BluetoothProfile.STATE_CONNECTED) {
                 intentAction = ACTION_GATT_CONNECTED;
                 mConnectionState = STATE_CONNECTED;
                 mConnectionState = STATE_CONNECTED;
+                markConnectionStep(ConnectionTrace.Step.Connected);
                 broadcastUpdate(intentAction);
                 Log.i(TAG, "Connected to GATT server.");
                 // Attempts to discover services after successful connection.
@@ -109,6 +180,21 @@ public class ImageTransferService extends Service {
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 intentAction = ACTION_GATT_DISCONNECTED;
                 mConnectionState = STATE_DISCONNECTED;
+                current_mtu_size = defaultMtu;
+                mMtuRequested = false;
+                mHandles = null;
+                mLinkProfile = null;
+                mLinkPhy = LinkProfile.PHY_1M;
+                mLinkIntervalUnits = 0;
+                mConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+                mLinkTuner.cancel();
+                mGattQueue.clear();
+                abortTransfer();
+                mImageReceiver.reset();
+                if (mAutoConnect && gatt == mBluetoothGatt) {
+                    // The stack connects again on its own, without a call to connect()
+                    mConnectionTrace = new ConnectionTrace(true);
+                }
                 Log.i(TAG, "Disconnected from GATT server.");
                 broadcastUpdate(intentAction);
             }
@@ -118,7 +204,16 @@ public class ImageTransferService extends Service {
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 Log.w(TAG, "mBluetoothGatt = " + mBluetoothGatt );
-
+                FileTransferHandles handles = FileTransferHandles.resolve(gatt);
+                if (handles == null) {
+                    showMessage("File transfer service not found!");
+                    broadcastUpdate(DEVICE_DOES_NOT_SUPPORT_FILE_TRANSFER);
+                    return;
+                }
+                FtChar = handles.incomingFile;
+                mHandles = handles;
+                markConnectionStep(ConnectionTrace.Step.ServicesDiscovered);
+                applyLinkProfile();
                 broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
 
             } else {
@@ -139,64 +234,50 @@ public class ImageTransferService extends Service {
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
+            byte[] value = characteristic.getValue();
+            mGattTrace.record(GattEventTrace.EVENT_NOTIFICATION, FileTransferHandles.traceId(characteristic.getUuid()),
+                    value == null || value.length == 0 ? 0 : (value[0] & 0xFF) << 8 | (value.length > 1 ? value[1] & 0xFF : 0));
             if(CMD_INFO_CHAR_UUID.equals(characteristic.getUuid())) {
-                broadcastUpdate(ACTION_CMD_INFO_AVAILABLE, characteristic);
+                // Flow control is handled right here on the binder thread, the UI only gets the other messages
+                if (!handleTransferControl(characteristic.getValue())) {
+                    broadcastUpdate(ACTION_CMD_INFO_AVAILABLE, characteristic);
+                }
             }
-            else {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+            else if (TX_CHAR_UUID.equals(characteristic.getUuid())) {
+                // Copied into the image buffer here, the UI only hears of complete images
+                if (mImageReceiver.onData(value) && mImageReceivedPosted.compareAndSet(false, true)) {
+                    mHandler.post(mImageReceived);
+                }
             }
         }
 
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status){
             super.onCharacteristicWrite(gatt, characteristic, status);
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.d("TAG","onCharacteristicWrite(): Successful");
-                if(isWriting){
-                    isWriting = false;
-                    boolean isWriteInProgress;
-                    transmitted_bytes += current_mtu_size;
-                    if(m_transmissionMode == TransmissionMode.Fragmented_mode){
-                        isWriteInProgress = _send();
-                    } else if(m_transmissionMode == TransmissionMode.Continuous_mode){
-                        isWriteInProgress = _send_cont();
-                    } else {
-                        isWriteInProgress = _send();
-                    }
-
-                    if(isWriteInProgress){
-                        broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-                    } else {
-                        broadcastUpdate(ACTION_GATT_TRANSFER_FINISHED);
-                    }
-                }
+            mGattTrace.record(GattEventTrace.EVENT_WRITE_COMPLETED, FileTransferHandles.traceId(characteristic.getUuid()), status);
+            if (!mGattQueue.onCharacteristicWrite(characteristic, status)) {
+                Log.w(TAG, "Unexpected write response for " + characteristic.getUuid());
             }
         }
 
         @Override
         public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
             Log.w(TAG, "OnDescWrite!!!");
-            if(TX_CHAR_UUID.equals(descriptor.getCharacteristic().getUuid())) {
-                // When the first notification is set we can set all others
-                BluetoothGattService ImageTransferService = mBluetoothGatt.getService(FILE_TRANSFER_SERVICE_UUID);
-                BluetoothGattCharacteristic ImgInfoChar = ImageTransferService.getCharacteristic(CMD_INFO_CHAR_UUID);
-                if (ImgInfoChar == null) {
-                    showMessage("Img Info characteristic not found!");
-                    broadcastUpdate(DEVICE_DOES_NOT_SUPPORT_FILE_TRANSFER);
-                    return;
-                }
-                mBluetoothGatt.setCharacteristicNotification(ImgInfoChar, true);
-
-                BluetoothGattDescriptor descriptor2 = ImgInfoChar.getDescriptor(CCCD);
-                descriptor2.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                mBluetoothGatt.writeDescriptor(descriptor2);
-            }
+            mGattTrace.record(GattEventTrace.EVENT_DESCRIPTOR_WRITE,
+                    FileTransferHandles.traceId(descriptor.getCharacteristic().getUuid()), status);
+            mGattQueue.onDescriptorWrite(descriptor, status);
         }
 
         @Override
         public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
-            Log.w(TAG, "MTU changed: " + mtu);
-            current_mtu_size = mtu;
+            Log.w(TAG, "MTU changed: " + mtu + " status: " + status);
+            mGattTrace.record(GattEventTrace.EVENT_MTU_CHANGED, mtu, status);
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                // Packets are sliced at write time, so an ongoing transfer picks up the new size with its next packet
+                current_mtu_size = mtu;
+            }
+            markConnectionStep(ConnectionTrace.Step.MtuExchanged);
+            mGattQueue.onMtuChanged(status);
         }
     };
 
@@ -224,6 +305,17 @@ public class ImageTransferService extends Service {
         ImageTransferService getService() {
             return ImageTransferService.this;
         }
+
+        /**
+         * Can be called from any thread, the listener is called on the main thread.
+         */
+        void addTransferListener(TransferListener listener) {
+            mMetrics.addListener(listener);
+        }
+
+        void removeTransferListener(TransferListener listener) {
+            mMetrics.removeListener(listener);
+        }
     }
 
     @Override
@@ -231,6 +323,12 @@ public class ImageTransferService extends Service {
         return mBinder;
     }
 
+    @Override
+    public void onDestroy() {
+        mQueueExecutor.shutdownNow();
+        super.onDestroy();
+    }
+
     @Override
     public boolean onUnbind(Intent intent) {
         // After using a given device, you should make sure that BluetoothGatt.close() is called
@@ -263,7 +361,8 @@ public class ImageTransferService extends Service {
             Log.e(TAG, "Unable to obtain a BluetoothAdapter.");
             return false;
         }
-        sendQueue = new ConcurrentLinkedQueue<>();
+        mCheckpointPrefs = getSharedPreferences(TransferCheckpoint.PREFS_NAME, Context.MODE_PRIVATE);
+        mLinkProfilePrefs = getSharedPreferences(LinkProfile.PREFS_NAME, Context.MODE_PRIVATE);
         return true;
     }
 
@@ -278,15 +377,26 @@ public class ImageTransferService extends Service {
      *         callback.
      */
     public boolean connect(final String address) {
+        return connect(address, true);
+    }
+
+    /**
+     * @param autoConnect false for a direct connection, which is faster if the device is advertising,
+     *                    true to let the stack connect in the background whenever the device shows up.
+     */
+    public boolean connect(final String address, boolean autoConnect) {
         if (mBluetoothAdapter == null || address == null) {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
 
         // Previously connected device.  Try to reconnect.
+        // BluetoothGatt.connect() always connects in the background, a direct connection needs a new client
         if (address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
+                && mBluetoothGatt != null && autoConnect) {
             Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
+            mConnectionTrace = new ConnectionTrace(true);
+            mAutoConnect = true;
             if (mBluetoothGatt.connect()) {
                 mConnectionState = STATE_CONNECTING;
                 return true;
@@ -300,10 +410,13 @@ public class ImageTransferService extends Service {
             Log.w(TAG, "Device not found.  Unable to connect.");
             return false;
         }
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        //mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        mBluetoothGatt = device.connectGatt(this, true, mGattCallback);
+        if (mBluetoothGatt != null) {
+            close();
+        }
+        mConnectionTrace = new ConnectionTrace(autoConnect);
+        mAutoConnect = autoConnect;
+        mBluetoothGatt = device.connectGatt(this, autoConnect, mGattCallback);
+        mGattQueue.setGatt(mBluetoothGatt);
         Log.d(TAG, "Trying to create a new connection.");
         mBluetoothDeviceAddress = address;
         mConnectionState = STATE_CONNECTING;
@@ -330,9 +443,33 @@ public class ImageTransferService extends Service {
     }
 
     public void requestMtu(int mtu){
+        requestMtu(mtu, null);
+    }
+
+    private void requestMtu(int mtu, GattOperationQueue.Callback callback){
         Log.i(TAG, "Requesting " + mtu + " byte MTU");
-        mBluetoothGatt.requestMtu(mtu);
-        current_mtu_size = mtu;
+        mMtuRequested = true;
+        ConnectionTrace trace = mConnectionTrace;
+        if (trace != null) {
+            trace.onMtuRequested();
+        }
+        // current_mtu_size is only updated from onMtuChanged, once the peer has agreed on the new value
+        mGattQueue.enqueue(GattOperationQueue.Operation.requestMtu(mtu, callback));
+    }
+
+    /**
+     * @return The setup timing of the current or last connection, null before the first one.
+     */
+    public ConnectionTrace getConnectionTrace(){
+        return mConnectionTrace;
+    }
+
+    private void markConnectionStep(ConnectionTrace.Step step) {
+        ConnectionTrace trace = mConnectionTrace;
+        if (trace != null && trace.mark(step)) {
+            Log.i(TAG, "Connection setup: " + trace);
+            broadcastUpdate(ACTION_CONNECTION_READY);
+        }
     }
 
     /**
@@ -344,80 +481,244 @@ public class ImageTransferService extends Service {
             return;
         }
         Log.w(TAG, "mBluetoothGatt closed");
+        SendCursor cursor = mSendCursor;
+        if (cursor != null) {
+            cursor.close();
+            mSendCursor = null;
+        }
         mBluetoothDeviceAddress = null;
+        mHandles = null;
+        mGattQueue.clear();
+        mGattQueue.setGatt(null);
         mBluetoothGatt.close();
         mBluetoothGatt = null;
     }
 
     public void enableTXNotification() {
         Log.w(TAG, "enable TX not.");
-        BluetoothGattService ImageTransferService = mBluetoothGatt.getService(FILE_TRANSFER_SERVICE_UUID);
-        if (ImageTransferService == null) {
-            showMessage("Rx service not found!");
-            broadcastUpdate(DEVICE_DOES_NOT_SUPPORT_FILE_TRANSFER);
+        FileTransferHandles handles = mHandles;
+        if (handles == null) {
+            Log.w(TAG, "enableTXNotification(): Services not discovered");
             return;
         }
+        mBluetoothGatt.setCharacteristicNotification(handles.tx, true);
+        mBluetoothGatt.setCharacteristicNotification(handles.cmdInfo, true);
+
+        // Both descriptor writes are queued up front, the queue runs them one after the other
+        mGattQueue.enqueue(GattOperationQueue.Operation.writeDescriptor(handles.txCccd,
+                BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, new GattOperationQueue.Callback() {
+                    @Override
+                    public void onComplete(int status) {
+                        if (status == BluetoothGatt.GATT_SUCCESS) {
+                            markConnectionStep(ConnectionTrace.Step.TxNotificationsEnabled);
+                        }
+                    }
+                }));
+        mGattQueue.enqueue(GattOperationQueue.Operation.writeDescriptor(handles.cmdInfoCccd,
+                BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, new GattOperationQueue.Callback() {
+                    @Override
+                    public void onComplete(int status) {
+                        if (status != BluetoothGatt.GATT_SUCCESS) {
+                            Log.w(TAG, "Unable to enable CMD_INFO notifications: " + status);
+                            return;
+                        }
+                        markConnectionStep(ConnectionTrace.Step.CmdInfoNotificationsEnabled);
+                        // The receiver's ReadyToReceive can only be seen from here on
+                        resumePendingTransfer();
+                    }
+                }));
+    }
 
-        BluetoothGattCharacteristic TxChar = ImageTransferService.getCharacteristic(TX_CHAR_UUID);
-        if (TxChar == null) {
-            showMessage("Tx characteristic not found!");
-            broadcastUpdate(DEVICE_DOES_NOT_SUPPORT_FILE_TRANSFER);
+    public void writeRXCharacteristic(byte[] value)
+    {
+        FileTransferHandles handles = mHandles;
+        if (handles == null) {
+            Log.w(TAG, "writeRXCharacteristic(): Not connected");
             return;
         }
-        mBluetoothGatt.setCharacteristicNotification(TxChar, true);
+        // Commands overtake queued file packets, back to back commands no longer drop each other
+        mGattQueue.enqueue(GattOperationQueue.Operation.writeCharacteristic(handles.rx, value,
+                BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, GattOperationQueue.Priority.High, mCommandWritten));
+    }
+
+    private final Runnable mImageReceived = new Runnable() {
+        @Override
+        public void run() {
+            mImageReceivedPosted.set(false);
+            for (TransferListener listener : mMetrics.getListeners()) {
+                listener.onImageReceived(mImageReceiver);
+            }
+        }
+    };
 
-        BluetoothGattDescriptor descriptor = TxChar.getDescriptor(CCCD);
-        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-        mBluetoothGatt.writeDescriptor(descriptor);
+    private final GattOperationQueue.Callback mCommandWritten = new GattOperationQueue.Callback() {
+        @Override
+        public void onComplete(int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "Command write failed: " + status);
+            }
+        }
+    };
 
+    private final GattOperationQueue.Callback mPacketWritten = new GattOperationQueue.Callback() {
+        @Override
+        public void onComplete(int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                // The packet is lost, the checkpoint is kept so the transfer can be resumed
+                Log.w(TAG, "Packet write failed: " + status);
+                abortTransfer();
+                return;
+            }
+            // Progress reaches the UI through the coalesced TransferListener calls, not per packet
+            mMetrics.onPacketWritten(FtChar.getValue().length, mPacketRetransmitted,
+                    System.nanoTime() - mPacketQueuedNanos);
+            onPacketWritten();
+        }
+    };
 
+    /**
+     * Queues the packet last loaded into the file transfer characteristic.
+     */
+    private boolean writeFilePacket(boolean retransmitted) {
+        mPacketRetransmitted = retransmitted;
+        mPacketQueuedNanos = System.nanoTime();
+        mGattQueue.enqueue(GattOperationQueue.Operation.writeCharacteristic(FtChar, FtChar.getValue(),
+                BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, GattOperationQueue.Priority.Normal, mPacketWritten));
+        return true;
     }
 
-    public void writeRXCharacteristic(byte[] value)
+    /**
+     * Prepares the file transfer characteristic and the cursor the packets are sent from.
+     *
+     * @param source Stream with the bytes to send, it is closed when the transfer ends.
+     * @param length Number of bytes announced to the receiver.
+     */
+    public void writeIncomingFileCharacteristic(InputStream source, int length)
     {
-        BluetoothGattService RxService = mBluetoothGatt.getService(FILE_TRANSFER_SERVICE_UUID);
-        if (RxService == null) {
-            showMessage("Rx service not found!");
-            broadcastUpdate(DEVICE_DOES_NOT_SUPPORT_FILE_TRANSFER);
-            return;
-        }
-        BluetoothGattCharacteristic RxChar = RxService.getCharacteristic(RX_CHAR_UUID);
-        if (RxChar == null) {
-            showMessage("Rx characteristic not found!");
-            broadcastUpdate(DEVICE_DOES_NOT_SUPPORT_FILE_TRANSFER);
+        if (isLinkTuning()) {
+            try {
+                source.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close the refused source: " + e);
+            }
             return;
         }
-        RxChar.setValue(value);
-        boolean status = mBluetoothGatt.writeCharacteristic(RxChar);
-
-        Log.d(TAG, "write TXchar - status=" + status);
+        writeIncomingFileCharacteristic(new SendCursor(source, length));
     }
 
-    public void writeIncomingFileCharacteristic(byte[] data)
+    /**
+     * Replaces the upload in progress, if there is one. Its queued file goes back to the queue.
+     */
+    private synchronized void writeIncomingFileCharacteristic(SendCursor cursor)
     {
-        BluetoothGattService RxService = mBluetoothGatt.getService(FILE_TRANSFER_SERVICE_UUID);
-        if (RxService == null) {
-            showMessage("Rx service not found!");
-            broadcastUpdate(DEVICE_DOES_NOT_SUPPORT_FILE_TRANSFER);
+        if (mHandles == null) {
+            Log.w(TAG, "writeIncomingFileCharacteristic(): Not connected");
+            cursor.close();
             return;
         }
-        FtChar = RxService.getCharacteristic(INCOMING_FILE_CHAR_UUID);
-        if (FtChar == null) {
-            showMessage("FileTransfer characteristic not found!");
-            broadcastUpdate(DEVICE_DOES_NOT_SUPPORT_FILE_TRANSFER);
+        SendCursor previous = mSendCursor;
+        if (previous != null) {
+            previous.close();
+            if (mQueueEntryOnAir != null) {
+                Log.i(TAG, "Replaced upload put back into the queue");
+                mTransferQueue.requeue(mQueueEntryOnAir);
+            }
+        }
+        cursor.setListener(mCursorListener);
+        mSendCursor = cursor;
+        mQueueEntryOnAir = null;
+        mWaitingForData = false;
+    }
+
+    private final SendCursor.Listener mCursorListener = new SendCursor.Listener() {
+        @Override
+        public void onDataAvailable(SendCursor cursor) {
+            if (cursor == mSendCursor) {
+                mHandler.post(mResumeSending);
+            }
+        }
+    };
+
+    private final Runnable mResumeSending = new Runnable() {
+        @Override
+        public void run() {
+            resumeSending();
+        }
+    };
+
+    /**
+     * Goes on where {@link #_send()} or {@link #_send_cont()} stopped because the cursor had no data yet.
+     */
+    private synchronized void resumeSending() {
+        if (!mWaitingForData || isWriting) {
             return;
         }
-        int counter = 0;
-        while (counter <= data.length - smallestSupported_mtu_payload_size) {
-            sendQueue.add(Arrays.copyOfRange(data, counter, counter + smallestSupported_mtu_payload_size));
-            counter += smallestSupported_mtu_payload_size;
+        mWaitingForData = false;
+        onPacketWritten();
+    }
+
+    /**
+     * Starts the next bulk window. The first ReadyToReceive of a transfer may carry the receiver's
+     * buffer size as a 4 byte little endian value and a flags byte, later ones are used to time
+     * the handshake. If the receiver set {@link #RECEIVER_FLAG_WINDOW_CRC}, each later ReadyToReceive
+     * answers the CRC of the previous window with a status byte, followed by a bitmap of the bad
+     * packets (LSB first) if the status is {@link #WINDOW_STATUS_BAD}.
+     */
+    private synchronized void onReadyToReceive(BleProtocol.CmdInfoMessage message) {
+        SendCursor cursor = mSendCursor;
+        if (!mBulkWindowNegotiated) {
+            mBulkWindowNegotiated = true;
+            if (message.hasCount()) {
+                mBulkWindow.reset(message.getCount());
+            }
+            mWindowCrcEnabled = message.hasReceiverFlags() && (message.getReceiverFlags() & RECEIVER_FLAG_WINDOW_CRC) != 0;
+            // Only SetWindowCrc tells the receiver that a window ended before its buffer is full
+            mBulkWindow.setAdaptive(mWindowCrcEnabled);
+            if (mWindowCrcEnabled) {
+                mRetransmit.reset(mBulkWindow.getMaxWindow());
+            }
+        } else if (mWindowCrcEnabled && mWindowCrcPending) {
+            mWindowCrcPending = false;
+            if (message.hasStatus() && message.getStatus() == WINDOW_STATUS_BAD) {
+                mRetransmit.markMissing(message.getValue(), 3, message.length() - 3);
+                if (mRetransmit.getRetries() > MAX_WINDOW_RETRIES) {
+                    Log.e(TAG, "Window before " + (cursor != null ? cursor.position() : 0)
+                            + " bytes still bad after " + MAX_WINDOW_RETRIES + " retransmissions");
+                    abortTransfer();
+                    return;
+                }
+                Log.w(TAG, "Window CRC mismatch, retransmitting");
+                // Still the same window, so the bulk counter is kept
+                _send();
+                return;
+            }
+            mRetransmit.clear();
+            if (mBulkWindowSentNanos != 0) {
+                mBulkWindow.onHandshake(System.nanoTime() - mBulkWindowSentNanos);
+            }
+        } else if (mBulkWindowSentNanos != 0) {
+            mBulkWindow.onHandshake(System.nanoTime() - mBulkWindowSentNanos);
+        }
+        mBulkWindowSentNanos = 0;
+        // The receiver has everything up to the end of the previous window
+        if (cursor != null && mCheckpoint != null && cursor.position() > mCheckpoint.ackedOffset
+                && mBluetoothDeviceAddress != null) {
+            mCheckpoint = mCheckpoint.withAckedOffset(cursor.position());
+            byte[] contentHash = getContentHash();
+            if (mCheckpoint.contentHash == null && contentHash != null) {
+                mCheckpoint = mCheckpoint.withContentHash(DeliveredContentIndex.toHex(contentHash));
+            }
+            mCheckpoint.save(mCheckpointPrefs, mBluetoothDeviceAddress);
         }
-        if(data.length - counter > 0){
-            sendQueue.add(Arrays.copyOfRange(data, counter, data.length));
+        if (cursor != null && mWindowCrcEnabled && cursor.isFinished()) {
+            // The last window was confirmed
+            onTransferComplete(cursor);
+            return;
         }
+        fts_start_transmit();
     }
 
-    public void fts_start_transmit(){
+    public synchronized void fts_start_transmit(){
         if( isWriting ){
             return;
         }
@@ -427,174 +728,1318 @@ public class ImageTransferService extends Service {
     }
 
     public void fts_sendFile(Uri file_uri, boolean isCompressionRequired){
-        byte[] mBuffer = new byte[0];
-        try {
-            mBuffer = readFileContent(file_uri);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        fts_sendFile(file_uri, isCompressionRequired ? CompressionCodecs.gzip(CompressionCodecs.DEFAULT_LEVEL) : CompressionCodecs.NONE);
+    }
 
-        if(isCompressionRequired){
-            try {
-                mBuffer = compressFileContent(mBuffer);
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * Sends the file with the codec that is estimated to finish first at the current link rate.
+     */
+    public void fts_sendFileAutoCodec(Uri file_uri){
+        fts_sendFile(file_uri, null);
+    }
+
+    /**
+     * The file is read, hashed and sampled on the queue worker, the caller is usually the UI thread.
+     *
+     * @param codec Codec to send the file with, or null to select one automatically.
+     */
+    public void fts_sendFile(final Uri file_uri, final CompressionCodec codec){
+        mQueueExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                PreparedUpload upload = prepareUpload(file_uri, codec, null);
+                if (upload != null && !startUpload(upload, true)) {
+                    upload.cursor.close();
+                }
             }
-        }
+        });
+    }
+
+    /**
+     * Adds a file to the transfer queue. Queued files are sent back to back, the highest priority
+     * first. While a file is on air the next one is already read and compressed, so its
+     * SetIncomingFileParams goes out as soon as the previous file completes.
+     *
+     * @param codec Codec to send the file with, or null to select one like {@link #fts_sendFileAutoCodec}.
+     */
+    public void fts_enqueueFile(Uri file_uri, int priority, CompressionCodec codec){
+        mTransferQueue.add(file_uri, priority, codec);
+        scheduleQueue();
+    }
 
-        total_transmission_bytes = mBuffer.length;
-        transmitted_bytes = 0;
-        writeIncomingFileCharacteristic(mBuffer);
-        // 32byte Filename, 4byte files_size, 1byte control
-        String path = file_uri.getPath();
-        String filename = path.substring(path.lastIndexOf("/")+1);
+    public void fts_enqueueFile(Uri file_uri, int priority){
+        fts_enqueueFile(file_uri, priority, null);
+    }
 
-        byte[] incomingFileParams = new byte[38];
-        byte[] incomingFileName;
-        byte[] incomingFileSize;
-        byte[] incomingFileOperation = new byte[1];
-        incomingFileName = filename.getBytes(StandardCharsets.UTF_8);
+    /**
+     * Drops the queued files that are not on air yet.
+     */
+    public void fts_clearQueue(){
+        mTransferQueue.clear();
+        mQueueExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                PreparedUpload prefetched = mPrefetched;
+                if (prefetched != null) {
+                    mPrefetched = null;
+                    prefetched.cursor.close();
+                }
+            }
+        });
+    }
 
-        incomingFileSize = ByteBuffer.allocate(4).putInt(mBuffer.length).array();
-        incomingFileOperation[0] = 0x00;
-        System.arraycopy(incomingFileName, 0, incomingFileParams, 0, incomingFileName.length);
-        System.arraycopy(incomingFileSize, 0, incomingFileParams, 32, incomingFileSize.length);
-        System.arraycopy(incomingFileOperation, 0, incomingFileParams, 37, incomingFileOperation.length);
-        incomingFileParams[37] = (byte) 0x00;
-        sendCommand(MainActivity.BleCommand.SetIncomingFileParams.ordinal(), incomingFileParams);
+    public int getQueuedFileCount(){
+        return mTransferQueue.size() + (mPrefetched != null ? 1 : 0);
     }
 
-    private boolean _send() {
-        if (sendQueue.isEmpty()) {
-            Log.d("TAG", "_send(): EMPTY QUEUE");
-            return false;
+    /**
+     * A file that is ready to go on air: its codec is selected, its cursor is already producing
+     * and its header is built.
+     */
+    private static class PreparedUpload {
+        final ContentSource file;
+        final CompressionCodec codec;
+        final TransferStats stats;
+        final int length;
+        final int resumeOffset;
+        final byte[] hash; // SHA-256 of the content, null if unknown
+        final SendCursor cursor;
+        final byte[] incomingFileParams;
+        TransferQueue.Entry queueEntry; // null if the file was not queued
+
+        PreparedUpload(ContentSource file, CompressionCodec codec, TransferStats stats, int length,
+                       int resumeOffset, byte[] hash, SendCursor cursor, byte[] incomingFileParams) {
+            this.file = file;
+            this.codec = codec;
+            this.stats = stats;
+            this.length = length;
+            this.resumeOffset = resumeOffset;
+            this.hash = hash;
+            this.cursor = cursor;
+            this.incomingFileParams = incomingFileParams;
         }
+    }
 
-        if(bulk_data_written >= BULK_DATA_LEN){
-            Log.d("TAG", "_send(): Bulk data transfer limit reached");
-            isWriting = false;
-            return false;
+    /**
+     * Selects the codec and starts producing a new upload, without touching the link. If content was
+     * delivered to the device before, the whole file is read for its hash to look for a duplicate,
+     * so it only runs on the queue worker. Otherwise the hash is computed while the file is sent.
+     *
+     * @param codec Requested codec, or null to select the one that finishes first at the current link rate.
+     * @return The upload, or null if the file cannot be read.
+     */
+    private PreparedUpload prepareUpload(Uri file_uri, CompressionCodec codec, TransferQueue.Entry queueEntry){
+        ContentSource file = new ContentSource(getContentResolver(), file_uri);
+        byte[] sample = new byte[CodecSelector.SAMPLE_SIZE];
+        int sampleLength;
+        long length;
+        byte[] hash = null;
+        try {
+            length = file.length();
+            sampleLength = readSample(file, sample);
+            String address = mBluetoothDeviceAddress;
+            if (address != null && !getDeliveredContent(address).isEmpty()) {
+                InputStream inputStream = file.open();
+                try {
+                    hash = DeliveredContentIndex.sha256(inputStream);
+                } finally {
+                    inputStream.close();
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + file_uri + ": " + e);
+            return null;
+        }
+        TransferStats stats = new TransferStats(file.getName(), length, codec != null ? codec.getName() : "auto");
+        if (codec == null) {
+            codec = CompressionCodecs.NONE;
+            if (!checkCompressible(sample, sampleLength, stats)) {
+                codec = new CodecSelector(CompressionCodecs.autoCandidates())
+                        .select(sample, sampleLength, length, mLinkRateBps);
+            }
+            Log.i(TAG, "Auto codec for " + file.getName() + ": " + codec.getName());
+        } else if (codec.getId() != CompressionCodec.ID_NONE && checkCompressible(sample, sampleLength, stats)) {
+            codec = CompressionCodecs.NONE;
+        }
+        PreparedUpload upload = createUpload(file, codec, stats, 0, hash);
+        if (upload != null) {
+            upload.queueEntry = queueEntry;
         }
+        return upload;
+    }
 
-        int nof_elements = (current_mtu_size - 3) / (smallestSupported_mtu_payload_size);
-        if( sendQueue.size() < nof_elements){
-            nof_elements = sendQueue.size();
+    /**
+     * Starts a prepared upload, unless content with the same SHA-256 was delivered to the device before.
+     * In that case the receiver is asked with a QueryContentHash command whether it still has it,
+     * and the payload is only sent if it does not. The check of the link and the start are atomic.
+     *
+     * @param replace true to replace the upload in progress, its queued file goes back to the queue.
+     * @return false if the link was busy, is being tuned or not ready, the upload was not started.
+     */
+    private boolean startUpload(final PreparedUpload upload, boolean replace) {
+        String address = mBluetoothDeviceAddress;
+        boolean deliveredBefore = upload.hash != null && address != null && getDeliveredContent(address).contains(upload.hash);
+        synchronized (this) {
+            if ((!replace && isUploadInProgress()) || isLinkTuning()) {
+                return false;
+            }
+            if (!deliveredBefore) {
+                return beginUpload(upload);
+            }
+            if (mHandles == null) {
+                Log.w(TAG, "startUpload(): Not connected");
+                return false;
+            }
+            Log.i(TAG, upload.file.getName() + " was delivered before, asking the receiver for it");
+            dropContentQuery();
+            mContentQuery = upload;
+            sendCommand(BleProtocol.queryContentHash(upload.file.getName(), upload.hash));
         }
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                onContentStatus(upload, false);
+            }
+        }, CONTENT_QUERY_TIMEOUT_MS);
+        return true;
+    }
 
-        int current_payload_size = nof_elements * smallestSupported_mtu_payload_size;
-        // Log.d(TAG, "_send(): Sending: " + current_payload_size + " byte. Pulling " + nof_elements + " number of elements from queue.");
-        byte[] payload = new byte[current_payload_size];
-        byte[] queue_data = new byte[0];
-        for(int i = 0; i < nof_elements; i++){
-           queue_data = sendQueue.poll();
-           System.arraycopy(queue_data, 0, payload, i * smallestSupported_mtu_payload_size,  queue_data.length);
+    /**
+     * Gives up a pending content query, e.g. when another upload takes the link. Its queued file goes
+     * back to the queue.
+     */
+    private synchronized void dropContentQuery() {
+        PreparedUpload query = mContentQuery;
+        if (query == null) {
+            return;
         }
-        if(sendQueue.size() == 0){
-            // Resize payload array, because most probably, we do not have enough data to fill it
-            byte[] last_payload = new byte[nof_elements * smallestSupported_mtu_payload_size - (smallestSupported_mtu_payload_size - queue_data.length)];
-            System.arraycopy( payload, 0, last_payload, 0, last_payload.length);
-            FtChar.setValue(last_payload);
-        } else {
-            FtChar.setValue(payload);
+        mContentQuery = null;
+        query.cursor.close();
+        if (query.queueEntry != null) {
+            Log.i(TAG, query.file.getName() + " put back into the queue");
+            mTransferQueue.requeue(query.queueEntry);
         }
+    }
 
-        isWriting = true; // Set the write in progress flag
-        bulk_data_written += current_payload_size;
-        FtChar.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-        return mBluetoothGatt.writeCharacteristic(FtChar);
-
+    /**
+     * Finishes a content query, either with the receiver's answer or when it timed out.
+     */
+    private void onContentStatus(PreparedUpload upload, boolean present) {
+        synchronized (this) {
+            if (mContentQuery != upload) {
+                // Answered before or replaced by a newer upload
+                return;
+            }
+            mContentQuery = null;
+            // Nothing else may take the link in between
+            if (!present && !beginUpload(upload)) {
+                upload.cursor.close();
+                if (upload.queueEntry != null) {
+                    mTransferQueue.requeue(upload.queueEntry);
+                }
+                return;
+            }
+        }
+        String address = mBluetoothDeviceAddress;
+        DeliveredContentIndex delivered = address != null ? getDeliveredContent(address) : null;
+        if (present) {
+            Log.i(TAG, upload.file.getName() + " is already on the receiver, upload skipped");
+            upload.cursor.close();
+            upload.stats.setDeduplicated(true);
+            upload.stats.setCompleted(0, 0);
+            mTransferStats = upload.stats;
+            // Ends like a transfer the receiver already had every byte of
+            mMetrics.start(upload.length, upload.length);
+            mMetrics.stop(true);
+            if (delivered != null) {
+                delivered.add(upload.hash);
+                saveDeliveredContent(delivered);
+                // The receiver stored the content under this name
+                forgetSignature(address, upload.file.getName());
+            }
+            scheduleQueue();
+            return;
+        }
+        if (delivered != null) {
+            delivered.remove(upload.hash);
+            saveDeliveredContent(delivered);
+        }
     }
 
-    public void setTransmissionMode(TransmissionMode mode){
-        m_transmissionMode = mode;
+    private DeliveredContentIndex getDeliveredContent(String address) {
+        File dir = new File(getFilesDir(), DELIVERED_CONTENT_DIR);
+        return DeliveredContentIndex.load(new File(dir, address.replace(":", "") + ".idx"));
     }
 
-    public void setContinuousTransmissionReadyState( boolean state ){
-        isReceiverReady = state;
-        m_transmissionMode = TransmissionMode.Continuous_mode;
-        if(isReceiverReady == true){
-            _send_cont();
+    private void saveDeliveredContent(DeliveredContentIndex delivered) {
+        try {
+            delivered.save();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to store the delivered content index: " + e);
         }
     }
 
-    private boolean _send_cont() {
-        if (sendQueue.isEmpty()) {
-            Log.d("TAG", "_send(): EMPTY QUEUE");
-            return false;
-        }
+    private void addDeliveredContent(String address, byte[] hash) {
+        DeliveredContentIndex delivered = getDeliveredContent(address);
+        delivered.add(hash);
+        saveDeliveredContent(delivered);
+    }
 
-        if(!isReceiverReady){
-            Log.d("TAG", "_send(): Data transmission paused");
-            isWriting = false;
-            return false;
-        }
+    /**
+     * Hashes a file on the queue worker, for an upload that started without its hash.
+     */
+    private Future<byte[]> hashContent(final ContentSource file) {
+        return mQueueExecutor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                InputStream inputStream = file.open();
+                try {
+                    return DeliveredContentIndex.sha256(inputStream);
+                } finally {
+                    inputStream.close();
+                }
+            }
+        });
+    }
 
-        int nof_elements = (current_mtu_size - 3) / (smallestSupported_mtu_payload_size);
-        if( sendQueue.size() < nof_elements){
-            nof_elements = sendQueue.size();
+    /**
+     * @return The SHA-256 of the upload in progress, or null while it is still computed or if it failed.
+     */
+    private synchronized byte[] getContentHash() {
+        Future<byte[]> hashing = mContentHashing;
+        if (mPendingContentHash == null && hashing != null && hashing.isDone()) {
+            mContentHashing = null;
+            mPendingContentHash = contentHashOf(hashing);
         }
+        return mPendingContentHash;
+    }
 
-        int current_payload_size = nof_elements * smallestSupported_mtu_payload_size;
-        // Log.d(TAG, "_send(): Sending: " + current_payload_size + " byte. Pulling " + nof_elements + " number of elements from queue.");
-        byte[] payload = new byte[current_payload_size];
-        byte[] queue_data = new byte[0];
-        for(int i = 0; i < nof_elements; i++){
-            queue_data = sendQueue.poll();
-            System.arraycopy(queue_data, 0, payload, i * smallestSupported_mtu_payload_size,  queue_data.length);
-        }
-        if(sendQueue.size() == 0){
-            // Resize payload array, because most probably, we do not have enough data to fill it
-            byte[] last_payload = new byte[nof_elements * smallestSupported_mtu_payload_size - (smallestSupported_mtu_payload_size - queue_data.length)];
-            System.arraycopy( payload, 0, last_payload, 0, last_payload.length);
-            FtChar.setValue(last_payload);
-        } else {
-            FtChar.setValue(payload);
+    /**
+     * @return The result of a finished hashing, null if it failed.
+     */
+    private static byte[] contentHashOf(Future<byte[]> hashing) {
+        try {
+            return hashing.get();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Unable to hash the upload: " + e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        return null;
+    }
 
-        isWriting = true; // Set the write in progress flag
-        FtChar.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-        return mBluetoothGatt.writeCharacteristic(FtChar);
+    private void scheduleQueue() {
+        mQueueExecutor.execute(mRunQueue);
     }
 
-    public void sendCommand(int command, byte []data) {
-        byte []pckData;
-        if(data == null) {
-            pckData = new byte[1];
-            pckData[0] = (byte)command;
+    private final Runnable mRunQueue = new Runnable() {
+        @Override
+        public void run() {
+            runQueue();
+        }
+    };
+
+    /**
+     * Starts the next queued file if the link is idle and prefetches the one after it.
+     * Only runs on the queue worker.
+     */
+    private void runQueue() {
+        if (isConnected() && !isUploadInProgress() && !mLinkTuner.isRunning()) {
+            PreparedUpload next = mPrefetched;
+            mPrefetched = null;
+            if (next != null && mTransferQueue.hasEntryBefore(next.queueEntry)) {
+                // A file with a higher priority was queued after the prefetch
+                next.cursor.close();
+                mTransferQueue.requeue(next.queueEntry);
+                next = null;
+            }
+            while (next == null) {
+                TransferQueue.Entry entry = mTransferQueue.poll();
+                if (entry == null) {
+                    return;
+                }
+                next = prepareUpload(entry.uri, entry.codec, entry);
+            }
+            if (!startUpload(next, false)) {
+                // A manual upload took the link meanwhile, keep the file for the next run
+                mPrefetched = next;
+            }
         }
-        else {
-            pckData = new byte[1 + data.length];
-            pckData[0] = (byte)command;
-            System.arraycopy(data, 0, pckData, 1, data.length);
+        while (mPrefetched == null) {
+            TransferQueue.Entry entry = mTransferQueue.poll();
+            if (entry == null) {
+                return;
+            }
+            mPrefetched = prepareUpload(entry.uri, entry.codec, entry);
         }
+    }
 
-        writeRXCharacteristic(pckData);
+    private synchronized boolean isUploadInProgress() {
+        return mSendCursor != null || mContentQuery != null;
     }
 
-    private byte[] readFileContent(Uri uri) throws IOException {
-        // Read file data
-        InputStream inputStream = getContentResolver().openInputStream(uri);
-        byte[] mBuffer = new byte[inputStream.available()];
-        inputStream.read(mBuffer, 0, inputStream.available());
-        inputStream.close();
-        return mBuffer;
+    /**
+     * The probes of the link tuner would mix with the packets of a file, so no upload starts while
+     * it runs. Queued and interrupted uploads continue once it is done.
+     *
+     * @return true if uploads are refused right now.
+     */
+    private boolean isLinkTuning() {
+        if (mLinkTuner.isRunning()) {
+            Log.w(TAG, "Link tuning in progress, upload refused");
+            return true;
+        }
+        return false;
     }
 
-    private byte[] compressFileContent(byte[] buffer) throws IOException {
-        ByteArrayOutputStream os = new ByteArrayOutputStream(buffer.length);
-        GZIPOutputStream gos = new GZIPOutputStream(os);
-        gos.write(buffer);
-        gos.close();
-        byte[] mCompressedByteArray = os.toByteArray();
-        os.close();
-        return mCompressedByteArray;
+    /**
+     * Continues the upload that was interrupted by a disconnect of the current device, if there is one.
+     * The receiver gets the header of the file again together with the offset to continue from.
+     * Otherwise the transfer queue goes on. The file is checked on the queue worker, its provider
+     * may be slow and must not hold up the GATT callbacks.
+     */
+    private void resumePendingTransfer() {
+        mQueueExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!resumeCheckpoint()) {
+                    runQueue();
+                }
+            }
+        });
     }
 
-    private void showMessage(String msg) {
-        Log.e(TAG, msg);
+    /**
+     * Reads the whole file to compare its SHA-256 with the one in the checkpoint, if the content
+     * changed it is sent again from the start. Only runs on the queue worker.
+     *
+     * @return true if the interrupted upload was started.
+     */
+    private boolean resumeCheckpoint() {
+        String address = mBluetoothDeviceAddress;
+        if (address == null || isUploadInProgress() || mLinkTuner.isRunning()) {
+            return false;
+        }
+        TransferCheckpoint checkpoint = TransferCheckpoint.load(mCheckpointPrefs, address);
+        if (checkpoint == null) {
+            return false;
+        }
+        ContentSource file = new ContentSource(getContentResolver(), Uri.parse(checkpoint.uri));
+        CompressionCodec codec = CompressionCodecs.forName(checkpoint.codecName);
+        byte[] hash;
+        try {
+            if (codec == null || file.length() != checkpoint.fileLength) {
+                Log.w(TAG, "File of the interrupted upload changed, not resuming " + checkpoint.uri);
+                TransferCheckpoint.clear(mCheckpointPrefs, address);
+                return false;
+            }
+            InputStream inputStream = file.open();
+            try {
+                hash = DeliveredContentIndex.sha256(inputStream);
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "File of the interrupted upload is gone, not resuming " + checkpoint.uri + ": " + e);
+            TransferCheckpoint.clear(mCheckpointPrefs, address);
+            return false;
+        } catch (SecurityException e) {
+            // The permission to read it ended with the process that picked it
+            Log.w(TAG, "File of the interrupted upload is no longer readable, not resuming " + checkpoint.uri + ": " + e);
+            TransferCheckpoint.clear(mCheckpointPrefs, address);
+            return false;
+        }
+        int resumeOffset = checkpoint.ackedOffset;
+        if (!DeliveredContentIndex.toHex(hash).equals(checkpoint.contentHash)) {
+            // Same size but other bytes, the receiver's part does not belong to this content
+            Log.w(TAG, "Content of the interrupted upload changed, sending " + file.getName() + " from the start");
+            resumeOffset = 0;
+        } else {
+            Log.i(TAG, "Resuming upload of " + file.getName() + " at " + resumeOffset + " bytes");
+        }
+        TransferStats stats = new TransferStats(file.getName(), checkpoint.fileLength, codec.getName());
+        stats.setResumeOffset(resumeOffset);
+        PreparedUpload upload = createUpload(file, codec, stats, resumeOffset, hash);
+        if (upload == null) {
+            return false;
+        }
+        synchronized (this) {
+            if (isUploadInProgress() || mLinkTuner.isRunning() || !beginUpload(upload)) {
+                // The checkpoint stays for the next attempt
+                upload.cursor.close();
+                return false;
+            }
+        }
+        return true;
     }
 
+    /**
+     * Estimates the entropy of the sample and records it in the stats.
+     *
+     * @return true if compression should be skipped because it will not pay off.
+     */
+    private boolean checkCompressible(byte[] sample, int sampleLength, TransferStats stats) {
+        float entropy = CodecSelector.estimateEntropy(sample, sampleLength);
+        stats.setSampleEntropy(entropy);
+        if (CodecSelector.isIncompressible(entropy)) {
+            Log.i(TAG, stats.getFileName() + " looks incompressible (" + entropy + " bits/byte), sending uncompressed");
+            stats.setCompressionSkipped(true);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Starts the cursor of an upload and builds its header.
+     *
+     * @param resumeOffset Offset in the sent byte stream to continue an interrupted upload from, 0 for a new upload.
+     * @return The upload, or null if the file cannot be read.
+     */
+    private PreparedUpload createUpload(final ContentSource file, final CompressionCodec codec, TransferStats stats,
+                                        int resumeOffset, byte[] hash){
+        int length;
+        try {
+            length = (int) file.length();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + file.getUri() + ": " + e);
+            return null;
+        }
+
+        stats.setCodec(codec.getName());
+        SendCursor cursor;
+        byte[] incomingFileParams;
+        if(codec.getId() != CompressionCodec.ID_NONE){
+            // The compressed size is only known once the last block is compressed, it follows in the trailer.
+            cursor = new SendCursor(new SendCursor.Producer() {
+                @Override
+                public void produce(OutputStream out) throws IOException {
+                    InputStream inputStream = file.open();
+                    try {
+                        codec.compress(inputStream, out);
+                    } finally {
+                        inputStream.close();
+                    }
+                }
+            }, SendCursor.LENGTH_UNKNOWN, resumeOffset);
+            incomingFileParams = BleProtocol.incomingFileParams(file.getName(), INCOMING_FILE_SIZE_UNKNOWN,
+                    (byte) (FILE_OP_SIZE_IN_TRAILER | codec.getId()));
+        } else {
+            InputStream source;
+            try {
+                source = file.open();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to read " + file.getUri() + ": " + e);
+                return null;
+            }
+            cursor = new SendCursor(source, length, resumeOffset);
+            incomingFileParams = BleProtocol.incomingFileParams(file.getName(), length, (byte) CompressionCodec.ID_NONE);
+        }
+        return new PreparedUpload(file, codec, stats, length, resumeOffset, hash, cursor, incomingFileParams);
+    }
+
+    /**
+     * Puts a prepared upload on air.
+     *
+     * @return false if the file transfer service is not discovered, nothing was changed and the
+     *         caller still owns the upload.
+     */
+    private synchronized boolean beginUpload(PreparedUpload upload){
+        if (mHandles == null) {
+            Log.w(TAG, "beginUpload(): Not connected");
+            return false;
+        }
+        prepareTransfer(upload.stats);
+        mCheckpoint = new TransferCheckpoint(upload.file.getUri().toString(), upload.length,
+                upload.hash != null ? DeliveredContentIndex.toHex(upload.hash) : null,
+                upload.codec.getName(), upload.resumeOffset);
+        if (mBluetoothDeviceAddress != null) {
+            mCheckpoint.save(mCheckpointPrefs, mBluetoothDeviceAddress);
+            forgetSignature(mBluetoothDeviceAddress, upload.file.getName());
+        }
+        mTransferStartNanos = System.nanoTime();
+        // For compressed uploads the progress is shown against the uncompressed size until the trailer
+        total_transmission_bytes = upload.length;
+        mMetrics.start(upload.length, upload.resumeOffset);
+        writeIncomingFileCharacteristic(upload.cursor);
+        mQueueEntryOnAir = upload.queueEntry;
+        mPendingContentHash = upload.hash;
+        if (upload.hash == null && mBluetoothDeviceAddress != null) {
+            mContentHashing = hashContent(upload.file);
+        }
+        if (upload.resumeOffset == 0) {
+            sendCommand(BleProtocol.setIncomingFileParams(upload.incomingFileParams));
+        } else {
+            sendCommand(BleProtocol.resumeIncomingFile(upload.incomingFileParams, upload.resumeOffset));
+        }
+        return true;
+    }
+
+    /**
+     * Sends a new version of a file the receiver got from this phone before as an rsync style delta.
+     * The block signature of every version sent is kept per device address and file name, so only
+     * the changed blocks go over the air. Without a signature the whole file is sent and the
+     * signature is recorded for the next upload. Any other upload of the name drops the signature.
+     * Delta uploads are not resumed after a disconnect.
+     */
+    public void fts_sendFileDelta(Uri file_uri){
+        if (isLinkTuning()) {
+            return;
+        }
+        final ContentSource file = new ContentSource(getContentResolver(), file_uri);
+        int length;
+        try {
+            length = (int) file.length();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + file_uri + ": " + e);
+            return;
+        }
+        if (mBluetoothDeviceAddress == null) {
+            return;
+        }
+        final File signatureFile = getSignatureFile(mBluetoothDeviceAddress, file.getName());
+        final BlockSignature previous = BlockSignature.load(signatureFile);
+        final BlockSignature.Builder signature = new BlockSignature.Builder(BlockSignature.blockSizeFor(length));
+
+        TransferStats stats = new TransferStats(file.getName(), length, DELTA_CODEC_NAME);
+        if (previous == null) {
+            stats.setCodec(CompressionCodecs.NONE.getName());
+        }
+        prepareTransfer(stats);
+        mCheckpoint = null;
+        TransferCheckpoint.clear(mCheckpointPrefs, mBluetoothDeviceAddress);
+        mPendingSignature = signature;
+        mPendingSignatureFile = signatureFile;
+        mTransferStartNanos = System.nanoTime();
+        total_transmission_bytes = length;
+        mMetrics.start(length, 0);
+        if (previous == null) {
+            Log.i(TAG, "No signature of " + file.getName() + " for this device, sending the whole file");
+            writeIncomingFileCharacteristic(new SendCursor(new SendCursor.Producer() {
+                @Override
+                public void produce(OutputStream out) throws IOException {
+                    InputStream inputStream = file.open();
+                    try {
+                        byte[] buffer = new byte[SendCursor.BLOCK_SIZE];
+                        int n;
+                        while ((n = inputStream.read(buffer)) != -1) {
+                            signature.update(buffer, 0, n);
+                            out.write(buffer, 0, n);
+                        }
+                    } finally {
+                        inputStream.close();
+                    }
+                }
+            }, length));
+            sendCommand(BleProtocol.setIncomingFileParams(file.getName(), length, (byte) CompressionCodec.ID_NONE));
+        } else {
+            // Like a compressed upload the size of the delta follows in the trailer
+            writeIncomingFileCharacteristic(new SendCursor(new SendCursor.Producer() {
+                @Override
+                public void produce(OutputStream out) throws IOException {
+                    InputStream inputStream = file.open();
+                    try {
+                        DeltaEncoder.encode(inputStream, previous, out, signature);
+                    } finally {
+                        inputStream.close();
+                    }
+                }
+            }, SendCursor.LENGTH_UNKNOWN));
+            sendCommand(BleProtocol.setIncomingFileParams(file.getName(), INCOMING_FILE_SIZE_UNKNOWN,
+                    (byte) (FILE_OP_SIZE_IN_TRAILER | FILE_OP_DELTA | CompressionCodec.ID_NONE)));
+        }
+    }
+
+    /**
+     * Sends many files as one solid archive, see {@link SolidArchive}, compressed as a whole.
+     * The receiver unpacks it using the index at its start.
+     *
+     * @param codec Codec for the whole archive, or null to select one like {@link #fts_sendFileAutoCodec}.
+     */
+    public void fts_sendArchive(List<Uri> file_uris, final String archiveName, final CompressionCodec codec){
+        final List<Uri> uris = new ArrayList<>(file_uris); // The caller may reuse its list
+        // The index needs the length of every file, which may block on its provider
+        mQueueExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                sendArchive(uris, archiveName, codec);
+            }
+        });
+    }
+
+    /**
+     * Only runs on the queue worker.
+     */
+    private void sendArchive(List<Uri> file_uris, String archiveName, CompressionCodec codec){
+        if (isLinkTuning()) {
+            return;
+        }
+        List<ContentSource> files = new ArrayList<>();
+        for (Uri file_uri : file_uris) {
+            files.add(new ContentSource(getContentResolver(), file_uri));
+        }
+        final SolidArchive archive;
+        byte[] sample = new byte[CodecSelector.SAMPLE_SIZE];
+        int sampleLength = 0;
+        try {
+            archive = new SolidArchive(files);
+            InputStream inputStream = archive.open();
+            try {
+                int n;
+                while (sampleLength < sample.length
+                        && (n = inputStream.read(sample, sampleLength, sample.length - sampleLength)) != -1) {
+                    sampleLength += n;
+                }
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read the files of " + archiveName + ": " + e);
+            return;
+        }
+        int length = (int) archive.length();
+        TransferStats stats = new TransferStats(archiveName, length, codec != null ? codec.getName() : "auto");
+        if (codec == null) {
+            codec = CompressionCodecs.NONE;
+            if (!checkCompressible(sample, sampleLength, stats)) {
+                codec = new CodecSelector(CompressionCodecs.autoCandidates())
+                        .select(sample, sampleLength, length, mLinkRateBps);
+            }
+        } else if (codec.getId() != CompressionCodec.ID_NONE && checkCompressible(sample, sampleLength, stats)) {
+            codec = CompressionCodecs.NONE;
+        }
+        Log.i(TAG, "Archive " + archiveName + ": " + archive.getFileCount() + " files, "
+                + length + " bytes, codec " + codec.getName());
+
+        stats.setCodec(codec.getName());
+        prepareTransfer(stats);
+        mCheckpoint = null;
+        if (mBluetoothDeviceAddress != null) {
+            TransferCheckpoint.clear(mCheckpointPrefs, mBluetoothDeviceAddress);
+            // The receiver unpacks the archive into files of these names
+            for (ContentSource file : files) {
+                forgetSignature(mBluetoothDeviceAddress, file.getName());
+            }
+        }
+        mTransferStartNanos = System.nanoTime();
+        total_transmission_bytes = length;
+        mMetrics.start(length, 0);
+        if (codec.getId() != CompressionCodec.ID_NONE) {
+            final CompressionCodec archiveCodec = codec;
+            writeIncomingFileCharacteristic(new SendCursor(new SendCursor.Producer() {
+                @Override
+                public void produce(OutputStream out) throws IOException {
+                    InputStream inputStream = archive.open();
+                    try {
+                        archiveCodec.compress(inputStream, out);
+                    } finally {
+                        inputStream.close();
+                    }
+                }
+            }, SendCursor.LENGTH_UNKNOWN));
+            sendCommand(BleProtocol.setIncomingFileParams(archiveName, INCOMING_FILE_SIZE_UNKNOWN,
+                    (byte) (FILE_OP_SIZE_IN_TRAILER | FILE_OP_ARCHIVE | codec.getId())));
+        } else {
+            writeIncomingFileCharacteristic(new SendCursor(archive.open(), length));
+            sendCommand(BleProtocol.setIncomingFileParams(archiveName, length, (byte) (FILE_OP_ARCHIVE | CompressionCodec.ID_NONE)));
+        }
+    }
+
+    /**
+     * Sends the same file to many devices at once, e.g. a firmware asset to every kit on a bench.
+     * The file is read and compressed once on the queue worker, then every device gets its own
+     * connection, see {@link FanOutScheduler}. This runs next to the connection of the UI and does not touch it.
+     *
+     * @param codec Codec for the payload, or null to select one like {@link #fts_sendFileAutoCodec}.
+     * @return false if another fan-out is still running.
+     */
+    public boolean fts_fanOut(List<String> addresses, Uri file_uri, final CompressionCodec codec){
+        synchronized (this) {
+            FanOutScheduler running = mFanOut;
+            if (mFanOutLoading || (running != null && !running.isFinished())) {
+                Log.w(TAG, "A fan-out is running, refused");
+                return false;
+            }
+            mFanOutLoading = true;
+        }
+        final List<String> devices = new ArrayList<>(addresses); // The caller may reuse its list
+        final ContentSource file = new ContentSource(getContentResolver(), file_uri);
+        mQueueExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    startFanOut(devices, file, codec);
+                } finally {
+                    synchronized (ImageTransferService.this) {
+                        mFanOutLoading = false;
+                    }
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Only runs on the queue worker.
+     */
+    private void startFanOut(List<String> addresses, ContentSource file, CompressionCodec codec) {
+        SharedPayload payload;
+        try {
+            if (codec == null) {
+                byte[] sample = new byte[CodecSelector.SAMPLE_SIZE];
+                int sampleLength = readSample(file, sample);
+                codec = CompressionCodecs.NONE;
+                if (!CodecSelector.isIncompressible(CodecSelector.estimateEntropy(sample, sampleLength))) {
+                    codec = new CodecSelector(CompressionCodecs.autoCandidates())
+                            .select(sample, sampleLength, file.length(), mLinkRateBps);
+                }
+            }
+            payload = SharedPayload.load(file, codec);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + file.getUri() + ": " + e);
+            return;
+        }
+        Log.i(TAG, "Fan-out of " + payload.getName() + " (" + payload.length() + " bytes, "
+                + codec.getName() + ") to " + addresses.size() + " devices");
+        for (String address : addresses) {
+            forgetSignature(address, payload.getName());
+        }
+        FanOutScheduler fanOut = new FanOutScheduler(ImageTransferService.this, mBluetoothAdapter,
+                addresses, payload, mHandler, mGattTrace);
+        mFanOut = fanOut;
+        fanOut.start();
+    }
+
+    /**
+     * Probes MTU, PHY and connection priority combinations and keeps the fastest, see {@link LinkTuner}.
+     * Sends {@link #ACTION_LINK_TUNED} when done, the result is in {@link #getLinkProfile()}.
+     *
+     * @return false if a transfer or another auto-tune is running.
+     */
+    public boolean fts_autoTuneLink(){
+        if (!isConnected() || isUploadInProgress() || mLinkTuner.isRunning()) {
+            return false;
+        }
+        mLinkTuner.start();
+        return true;
+    }
+
+    public LinkProfile getLinkProfile(){
+        return mLinkProfile;
+    }
+
+    private final LinkTuner mLinkTuner = new LinkTuner(new LinkTuner.Link() {
+        @Override
+        public int getMtu() {
+            return current_mtu_size;
+        }
+
+        @Override
+        public void requestMtu(int mtu, GattOperationQueue.Callback callback) {
+            ImageTransferService.this.requestMtu(mtu, callback);
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int priority) {
+            return ImageTransferService.this.requestConnectionPriority(priority);
+        }
+
+        @Override
+        public void changePhy(int phy) {
+            ImageTransferService.this.changePhy(phy);
+        }
+
+        @Override
+        public void writeProbePacket(byte[] packet, GattOperationQueue.Callback callback) {
+            FileTransferHandles handles = mHandles;
+            if (handles == null) {
+                callback.onComplete(GattOperationQueue.STATUS_REJECTED);
+                return;
+            }
+            mGattQueue.enqueue(GattOperationQueue.Operation.writeCharacteristic(handles.rx, packet,
+                    BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, GattOperationQueue.Priority.Normal, callback));
+        }
+    }, mHandler, new LinkTuner.Listener() {
+        @Override
+        public void onLinkTuned(LinkProfile best) {
+            if (best != null) {
+                saveLinkProfile(best);
+            } else {
+                mLinkProfile = null; // The tuner fell back to the defaults
+            }
+            broadcastUpdate(ACTION_LINK_TUNED);
+            // Uploads were held back while it ran
+            resumePendingTransfer();
+        }
+    });
+
+    private boolean requestConnectionPriority(int priority) {
+        BluetoothGatt gatt = mBluetoothGatt;
+        if (gatt == null || !gatt.requestConnectionPriority(priority)) {
+            return false;
+        }
+        mConnectionPriority = priority;
+        return true;
+    }
+
+    private void changePhy(int phy) {
+        sendCommand(BleProtocol.changePhy(phy));
+    }
+
+    /**
+     * Applies the last good settings of the device right after discovery, so the first transfer
+     * does not wait for the MTU exchange and PHY update the app would otherwise start later.
+     */
+    private void applyLinkProfile() {
+        String address = mBluetoothDeviceAddress;
+        LinkProfile profile = address != null ? LinkProfile.load(mLinkProfilePrefs, address) : null;
+        mLinkProfile = profile;
+        if (profile == null) {
+            return;
+        }
+        Log.i(TAG, "Applying the link profile of " + address + ": " + profile);
+        // A profile saved before the MTU exchange holds the default, the request would keep it there
+        requestMtu(Math.max(profile.mtu, targetMtu));
+        requestConnectionPriority(profile.connectionPriority);
+        if (profile.phy != LinkProfile.PHY_1M) {
+            changePhy(profile.phy);
+        }
+        if (profile.throughputBps > 0) {
+            mLinkRateBps = profile.throughputBps;
+        }
+    }
+
+    private void saveLinkProfile(LinkProfile profile) {
+        mLinkProfile = profile;
+        String address = mBluetoothDeviceAddress;
+        if (address != null) {
+            profile.save(mLinkProfilePrefs, address);
+        }
+    }
+
+    /**
+     * Writes the recent GATT events to gatt_trace.bin in the app's external files directory,
+     * decode it with {@link GattTraceDecoder}.
+     *
+     * @return The file written.
+     */
+    public File dumpGattTrace() throws IOException {
+        File dir = getExternalFilesDir(null);
+        File file = new File(dir != null ? dir : getFilesDir(), GATT_TRACE_FILE);
+        mGattTrace.dump(file);
+        return file;
+    }
+
+    /**
+     * @return One line per device of the last fan-out, empty if there was none.
+     */
+    public List<String> getFanOutStatus(){
+        FanOutScheduler fanOut = mFanOut;
+        return fanOut != null ? fanOut.getStatus() : new ArrayList<String>();
+    }
+
+    private File getSignatureFile(String address, String filename) {
+        File dir = new File(getFilesDir(), SIGNATURE_DIR);
+        return new File(dir, address.replace(":", "") + "_" + filename + ".sig");
+    }
+
+    /**
+     * Drops the block signature of a file that reaches the device other than as a delta, the
+     * receiver's copy no longer matches it and the next delta upload sends the whole file.
+     */
+    private void forgetSignature(String address, String filename) {
+        File file = getSignatureFile(address, filename);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Unable to delete the signature " + file);
+        }
+    }
+
+    /**
+     * Resets the per transfer state of the link before a new file is sent.
+     */
+    private void prepareTransfer(TransferStats stats) {
+        synchronized (this) {
+            mTransferStats = stats;
+            mPendingSignature = null;
+            mPendingSignatureFile = null;
+            mPendingContentHash = null;
+            if (mContentHashing != null) {
+                mContentHashing.cancel(false);
+                mContentHashing = null;
+            }
+            dropContentQuery();
+            // Receivers that never grant credits are only paced by ReadyToReceiveContinuous/ReceiverBusy
+            mCredits = CREDITS_UNLIMITED;
+            mBulkWindow.reset(0);
+            mBulkWindowNegotiated = false;
+            mBulkWindowSentNanos = 0;
+            mWindowCrcEnabled = false;
+            mWindowCrcPending = false;
+        }
+    }
+
+    /**
+     * Stops the transfer in progress, e.g. when the link is lost. Its checkpoint is kept, so
+     * it can be resumed on the next connection.
+     */
+    private synchronized void abortTransfer() {
+        SendCursor cursor = mSendCursor;
+        if (cursor != null) {
+            Log.i(TAG, "Transfer interrupted at " + cursor.position() + " bytes");
+            cursor.close();
+            mSendCursor = null;
+        }
+        mQueueEntryOnAir = null;
+        mWaitingForData = false;
+        mCheckpoint = null;
+        isWriting = false;
+        mMetrics.stop(false);
+    }
+
+    /**
+     * Sends the next packet after the previous one was written.
+     *
+     * @return true if another packet is on its way.
+     */
+    private synchronized boolean onPacketWritten() {
+        isWriting = false;
+        boolean isWriteInProgress;
+        if(m_transmissionMode == TransmissionMode.Fragmented_mode){
+            isWriteInProgress = _send();
+        } else if(m_transmissionMode == TransmissionMode.Continuous_mode){
+            isWriteInProgress = _send_cont();
+        } else {
+            isWriteInProgress = _send();
+        }
+
+        if(!isWriteInProgress){
+            SendCursor cursor = mSendCursor;
+            if (cursor != null && cursor.isFinished() && !mWindowCrcEnabled) {
+                onTransferComplete(cursor);
+            }
+        }
+        return isWriteInProgress;
+    }
+
+    private void onTransferComplete(SendCursor cursor) {
+        mSendCursor = null;
+        mQueueEntryOnAir = null;
+        mCheckpoint = null;
+        if (mBluetoothDeviceAddress != null) {
+            TransferCheckpoint.clear(mCheckpointPrefs, mBluetoothDeviceAddress);
+        }
+        if (!cursor.isLengthKnown()) {
+            sendIncomingFileTrailer(cursor);
+        }
+        long elapsedNanos = System.nanoTime() - mTransferStartNanos;
+        TransferStats stats = mTransferStats;
+        // The bytes before the resume offset were sent on an earlier connection
+        long sentBytes = cursor.position() - (stats != null ? stats.getResumeOffset() : 0);
+        if (sentBytes >= MIN_LINK_RATE_SAMPLE_BYTES && elapsedNanos > 0) {
+            mLinkRateBps = (int) (sentBytes * 8L * 1000000000L / elapsedNanos);
+            saveLinkProfile(new LinkProfile(current_mtu_size, mLinkPhy, mConnectionPriority, mLinkIntervalUnits,
+                    mLinkRateBps, false));
+        }
+        BlockSignature.Builder signature = mPendingSignature;
+        if (signature != null) {
+            mPendingSignature = null;
+            try {
+                signature.build().save(mPendingSignatureFile);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to store the signature " + mPendingSignatureFile + ": " + e);
+            }
+        }
+        final String address = mBluetoothDeviceAddress;
+        byte[] contentHash = getContentHash();
+        final Future<byte[]> hashing = mContentHashing;
+        mPendingContentHash = null;
+        mContentHashing = null;
+        if (address != null && contentHash != null) {
+            addDeliveredContent(address, contentHash);
+        } else if (address != null && hashing != null) {
+            // Queued behind the hashing on the single worker, so get() does not wait
+            mQueueExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] hash = contentHashOf(hashing);
+                    if (hash != null) {
+                        addDeliveredContent(address, hash);
+                    }
+                }
+            });
+        }
+        if (stats != null) {
+            stats.setCompleted(sentBytes, elapsedNanos);
+            Log.i(TAG, "Transfer complete: " + stats);
+        }
+        mMetrics.stop(true);
+        Log.i(TAG, "Write latency p50 " + mMetrics.getLatencyPercentileMicros(50) + " us, p99 "
+                + mMetrics.getLatencyPercentileMicros(99) + " us, " + mMetrics.getRetransmittedBytes() + " bytes retransmitted");
+        scheduleQueue();
+    }
+
+    /**
+     * Announces the final size of a transfer that was started with {@link #FILE_OP_SIZE_IN_TRAILER},
+     * once the last packet has been written.
+     */
+    private void sendIncomingFileTrailer(SendCursor cursor) {
+        total_transmission_bytes = cursor.position();
+        mMetrics.setTotalBytes(cursor.position());
+        sendCommand(BleProtocol.incomingFileTrailer(cursor.position()));
+    }
+
+    private synchronized boolean _send() {
+        mWaitingForData = false;
+        SendCursor cursor = mSendCursor;
+        if (cursor == null) {
+            Log.d("TAG", "_send(): EMPTY QUEUE");
+            return false;
+        }
+        if (mWindowCrcEnabled) {
+            if (mWindowCrcPending) {
+                return false;
+            }
+            if (mRetransmit.hasMissing()) {
+                FtChar.setValue(mRetransmit.nextMissing());
+                isWriting = true;
+                return writeFilePacket(true);
+            }
+        }
+        if (cursor.isEmpty()) {
+            Log.d("TAG", "_send(): EMPTY QUEUE");
+            if (mWindowCrcEnabled && !mRetransmit.isEmpty()) {
+                sendWindowCrc();
+            }
+            return false;
+        }
+
+        int window = mBulkWindow.getWindow();
+        if(bulk_data_written >= window
+                || (mWindowCrcEnabled && mRetransmit.isFull(current_mtu_size - ATT_HEADER_SIZE))){
+            Log.d("TAG", "_send(): Bulk data transfer limit reached");
+            mBulkWindowSentNanos = System.nanoTime();
+            isWriting = false;
+            if (mWindowCrcEnabled) {
+                sendWindowCrc();
+            }
+            return false;
+        }
+
+        if (!cursor.isReady()) {
+            // Never wait for the producer here, this runs on the GATT callback thread with the lock held
+            mWaitingForData = true;
+            return false;
+        }
+
+        // Never overshoot the receiver's bulk buffer, the last packet of a window may be short
+        int written = writeNextPacket(cursor, window - bulk_data_written);
+        if (written < 0) {
+            return false;
+        }
+        if (mWindowCrcEnabled) {
+            mRetransmit.add(FtChar.getValue());
+        }
+        bulk_data_written += written;
+        return writeFilePacket(false);
+
+    }
+
+    /**
+     * Closes the bulk window with its CRC32 and packet count, the receiver answers with a ReadyToReceive.
+     */
+    private void sendWindowCrc() {
+        mWindowCrcPending = true;
+        sendCommand(BleProtocol.windowCrc(mRetransmit.getCrc(), mRetransmit.getPacketCount()));
+    }
+
+    /**
+     * Loads the next packet from the cursor into the file transfer characteristic.
+     *
+     * @param limit Upper bound on the packet size on top of the MTU.
+     * @return The number of payload bytes taken from the cursor, or -1 if the file source
+     *         failed and the transfer was aborted.
+     */
+    private int writeNextPacket(SendCursor cursor, int limit) {
+        byte[] payload;
+        try {
+            // Fill the whole ATT payload of the currently negotiated MTU
+            payload = cursor.next(Math.min(current_mtu_size - ATT_HEADER_SIZE, limit));
+        } catch (IOException e) {
+            Log.e(TAG, "Transfer aborted at " + cursor.position() + " bytes: " + e);
+            cursor.close();
+            mSendCursor = null;
+            isWriting = false;
+            mMetrics.stop(false);
+            scheduleQueue();
+            return -1;
+        }
+        FtChar.setValue(payload);
+
+        isWriting = true; // Set the write in progress flag
+        return payload.length;
+    }
+
+    public void setTransmissionMode(TransmissionMode mode){
+        m_transmissionMode = mode;
+    }
+
+    public synchronized void setContinuousTransmissionReadyState( boolean state ){
+        isReceiverReady = state;
+        m_transmissionMode = TransmissionMode.Continuous_mode;
+        if(isReceiverReady && !isWriting){
+            _send_cont();
+        }
+    }
+
+    /**
+     * Adds byte credits granted by the receiver. Once the receiver grants credits, Continuous_mode
+     * keeps writing until they are used up, instead of waiting for a ReadyToReceiveContinuous
+     * after every ReceiverBusy. A grant that is not positive is ignored, the sum saturates rather
+     * than wrap into {@link #CREDITS_UNLIMITED} or a negative count.
+     */
+    public synchronized void grantContinuousCredits(int credits){
+        if (credits <= 0) {
+            Log.w(TAG, "Ignoring a grant of " + (credits & 0xFFFFFFFFL) + " credits");
+            return;
+        }
+        mCredits = (int) Math.min((long) (mCredits == CREDITS_UNLIMITED ? 0 : mCredits) + credits, Integer.MAX_VALUE);
+        isReceiverReady = true;
+        m_transmissionMode = TransmissionMode.Continuous_mode;
+        if(!isWriting){
+            _send_cont();
+        }
+    }
+
+    private synchronized boolean _send_cont() {
+        mWaitingForData = false;
+        SendCursor cursor = mSendCursor;
+        if (cursor == null || cursor.isEmpty()) {
+            Log.d("TAG", "_send(): EMPTY QUEUE");
+            return false;
+        }
+
+        if(!isReceiverReady || mCredits == 0){
+            Log.d("TAG", "_send(): Data transmission paused");
+            isWriting = false;
+            return false;
+        }
+
+        if (!cursor.isReady()) {
+            mWaitingForData = true;
+            return false;
+        }
+
+        int written = writeNextPacket(cursor, mCredits == CREDITS_UNLIMITED ? Integer.MAX_VALUE : mCredits);
+        if (written < 0) {
+            return false;
+        }
+        if (mCredits != CREDITS_UNLIMITED) {
+            mCredits -= written;
+        }
+        return writeFilePacket(false);
+    }
+
+    /**
+     * Reacts to the transfer control messages of the receiver on CMD_INFO_CHAR_UUID.
+     *
+     * @return true if the message is pure flow control, which arrives once per window and is of
+     *         no interest to the UI.
+     */
+    private boolean handleTransferControl(byte[] value) {
+        BleProtocol.CmdInfoMessage cmdInfo = mCmdInfoMessage;
+        if (!cmdInfo.wrap(value)) {
+            return false;
+        }
+        if (cmdInfo.getCommand() == BleProtocol.CmdInfoCharCommands.setIncomingFileParams) {
+            mImageReceiver.start(cmdInfo.getIncomingFileSize());
+            return false;
+        }
+        if (cmdInfo.getCommand() == BleProtocol.CmdInfoCharCommands.setConnectionParams) {
+            mLinkIntervalUnits = cmdInfo.getConnectionIntervalUnits();
+            mLinkPhy = cmdInfo.getTxPhy() == BLE_PHY_2M ? LinkProfile.PHY_2M : LinkProfile.PHY_1M;
+            mLinkTuner.onConnectionParams(mLinkPhy, mLinkIntervalUnits);
+            mGattTrace.record(GattEventTrace.EVENT_CONNECTION_PARAMS, mLinkIntervalUnits, mLinkPhy);
+            if (!mMtuRequested && cmdInfo.getMtu() < MTU_REQUEST_THRESHOLD) {
+                // Requested before the step is marked, so the connection is only ready with the larger MTU
+                requestMtu(targetMtu);
+            }
+            markConnectionStep(ConnectionTrace.Step.BleParamsReceived);
+            return false;
+        }
+        if (cmdInfo.getCommand() != BleProtocol.CmdInfoCharCommands.setOutgoingFileParams) {
+            return false;
+        }
+        BleProtocol.OutgoingFileParams message = cmdInfo.getOutgoingFileParams();
+        if (message == BleProtocol.OutgoingFileParams.ReceiverBusy) {
+            mGattTrace.record(GattEventTrace.EVENT_RECEIVER_BUSY, message.ordinal(), 0);
+        } else if (message == BleProtocol.OutgoingFileParams.ReadyToReceive
+                || message == BleProtocol.OutgoingFileParams.ReadyToReceiveContinuous
+                || message == BleProtocol.OutgoingFileParams.GrantCredits) {
+            mGattTrace.record(GattEventTrace.EVENT_RECEIVER_READY, message.ordinal(), 0);
+        }
+        switch (message) {
+            case ReadyToReceive:
+                onReadyToReceive(cmdInfo);
+                return true;
+            case ReadyToReceiveContinuous:
+                setContinuousTransmissionReadyState(true);
+                return true;
+            case ReceiverBusy:
+                setContinuousTransmissionReadyState(false);
+                return true;
+            case GrantCredits:
+                if (cmdInfo.hasCount()) {
+                    grantContinuousCredits(cmdInfo.getCount());
+                }
+                return true;
+            case ContentStatus:
+                // 1 if the receiver has the content and stored it under the queried name
+                PreparedUpload query;
+                synchronized (this) {
+                    query = mContentQuery;
+                }
+                if (query != null) {
+                    onContentStatus(query, cmdInfo.hasStatus() && cmdInfo.getStatus() != 0);
+                }
+                break;
+            default:
+                break;
+        }
+        return false;
+    }
+
+    /**
+     * @param command A packet built by {@link BleProtocol}.
+     */
+    public void sendCommand(byte[] command) {
+        writeRXCharacteristic(command);
+    }
+
+    private static int readSample(ContentSource file, byte[] sample) throws IOException {
+        InputStream inputStream = file.open();
+        int total = 0;
+        try {
+            int n;
+            while (total < sample.length && (n = inputStream.read(sample, total, sample.length - total)) != -1) {
+                total += n;
+            }
+        } finally {
+            inputStream.close();
+        }
+        return total;
+    }
+
+    private void showMessage(String msg) {
+        Log.e(TAG, msg);
+    }
+
+    /**
+     * @return Stats of the current or last file transfer, or null if no file has been sent.
+     */
+    public TransferStats getTransferStats(){ return mTransferStats; }
+    public synchronized int getBulkWindowSize(){ return mBulkWindow.getWindow(); }
+    public synchronized long getLastHandshakeWaitNanos(){ return mBulkWindow.getLastWaitNanos(); }
+    public synchronized long getAverageHandshakeWaitNanos(){ return mBulkWindow.getAverageWaitNanos(); }
     public int getTotalTransmissionBytes(){ return total_transmission_bytes; }
-    public int getTransmitted_bytes(){ return transmitted_bytes; }
+    public int getTransmitted_bytes(){ return (int) mMetrics.getSentBytes(); }
 
     }
\ No newline at end of file
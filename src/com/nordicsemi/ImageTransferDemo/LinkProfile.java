@@ -0,0 +1,69 @@
+package com.nordicsemi.ImageTransferDemo;
+
+import android.content.SharedPreferences;
+
+/**
+ * One combination of link settings and the throughput measured with it. The last good profile
+ * of every device is persisted by address, so a reconnect applies it right after discovery.
+ */
+final class LinkProfile {
+    static final String PREFS_NAME = "link_profiles";
+    static final int PHY_1M = 0; // Same as the ChangePhy argument and the PHY spinner positions
+    static final int PHY_2M = 1;
+
+    private static final String KEY_MTU = ".mtu";
+    private static final String KEY_PHY = ".phy";
+    private static final String KEY_CONNECTION_PRIORITY = ".connection_priority";
+    private static final String KEY_INTERVAL = ".interval";
+    private static final String KEY_THROUGHPUT = ".throughput_bps";
+
+    final int mtu;
+    final int phy;
+    final int connectionPriority; // BluetoothGatt.CONNECTION_PRIORITY_*
+    final int intervalUnits; // 1.25 ms units, 0 if unknown
+    final int throughputBps;
+    final boolean onePacketPerInterval; // The phone sent a single packet per connection interval
+
+    LinkProfile(int mtu, int phy, int connectionPriority, int intervalUnits, int throughputBps,
+                boolean onePacketPerInterval) {
+        this.mtu = mtu;
+        this.phy = phy;
+        this.connectionPriority = connectionPriority;
+        this.intervalUnits = intervalUnits;
+        this.throughputBps = throughputBps;
+        this.onePacketPerInterval = onePacketPerInterval;
+    }
+
+    /**
+     * @return The last good profile of the device, or null if it was never measured.
+     */
+    static LinkProfile load(SharedPreferences prefs, String address) {
+        int mtu = prefs.getInt(address + KEY_MTU, 0);
+        if (mtu == 0) {
+            return null;
+        }
+        return new LinkProfile(mtu,
+                prefs.getInt(address + KEY_PHY, PHY_1M),
+                prefs.getInt(address + KEY_CONNECTION_PRIORITY, 0),
+                prefs.getInt(address + KEY_INTERVAL, 0),
+                prefs.getInt(address + KEY_THROUGHPUT, 0),
+                false);
+    }
+
+    void save(SharedPreferences prefs, String address) {
+        prefs.edit()
+                .putInt(address + KEY_MTU, mtu)
+                .putInt(address + KEY_PHY, phy)
+                .putInt(address + KEY_CONNECTION_PRIORITY, connectionPriority)
+                .putInt(address + KEY_INTERVAL, intervalUnits)
+                .putInt(address + KEY_THROUGHPUT, throughputBps)
+                .apply();
+    }
+
+    @Override
+    public String toString() {
+        return (phy == PHY_2M ? "2M" : "1M") + " PHY, MTU " + mtu + ", priority " + connectionPriority
+                + (intervalUnits > 0 ? ", interval " + intervalUnits * 1.25f + " ms" : "") + ": "
+                + throughputBps / 1000 + " kbps" + (onePacketPerInterval ? " (one packet per interval)" : "");
+    }
+}
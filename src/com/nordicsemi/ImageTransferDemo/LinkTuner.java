@@ -0,0 +1,206 @@
+package com.nordicsemi.ImageTransferDemo;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the fastest link settings by measurement. The largest MTU is negotiated first, then every
+ * combination of 1M/2M PHY and connection priority is applied and probed with a short burst of
+ * NoCommand packets written without response. The write completions are paced by the controller,
+ * so once its buffers are full they give the rate the link actually carries.
+ * <p>
+ * Some phones, e.g. the Huawei P20 Pro, send only one packet per connection interval on the 2M PHY.
+ * A 2M probe that moves about one packet per interval is flagged and never chosen, a short burst
+ * may otherwise rate it well while the controller buffers drain.
+ */
+class LinkTuner {
+    private final static String TAG = "lbs_tag_tuner";
+    private static final int[] CONNECTION_PRIORITIES = {
+            BluetoothGatt.CONNECTION_PRIORITY_BALANCED, BluetoothGatt.CONNECTION_PRIORITY_HIGH};
+    private static final long SETTLE_MS = 500; // Time for the connection and PHY update to take effect
+    private static final long BURST_NANOS = 500000000L;
+    private static final int WARMUP_PACKETS = 8; // Fill the controller buffers before the clock starts
+    private static final float ONE_PACKET_PER_INTERVAL_LIMIT = 1.5f;
+
+    interface Link {
+        int getMtu();
+
+        void requestMtu(int mtu, GattOperationQueue.Callback callback);
+
+        boolean requestConnectionPriority(int priority);
+
+        void changePhy(int phy);
+
+        void writeProbePacket(byte[] packet, GattOperationQueue.Callback callback);
+    }
+
+    interface Listener {
+        /**
+         * @param best The profile that was applied, null if no probe succeeded.
+         */
+        void onLinkTuned(LinkProfile best);
+    }
+
+    private final Link mLink;
+    private final Handler mHandler;
+    private final Listener mListener;
+    private final List<LinkProfile> mResults = new ArrayList<>();
+    private volatile boolean mRunning; // Read by the service without this lock
+    private int mCandidate;
+    private int mReportedPhy = -1;
+    private int mIntervalUnits; // 1.25 ms units, 0 until the device reported it
+    private byte[] mProbe;
+    private int mProbesWritten;
+    private long mBurstStartNanos;
+    private long mBurstBytes;
+
+    LinkTuner(Link link, Handler handler, Listener listener) {
+        mLink = link;
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    boolean isRunning() {
+        return mRunning;
+    }
+
+    synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mResults.clear();
+        mCandidate = 0;
+        mLink.requestMtu(ImageTransferService.targetMtu, new GattOperationQueue.Callback() {
+            @Override
+            public void onComplete(int status) {
+                synchronized (LinkTuner.this) {
+                    if (mRunning) {
+                        applyCandidate();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops probing, e.g. when the link is lost. The listener is not called.
+     */
+    synchronized void cancel() {
+        mRunning = false;
+        mHandler.removeCallbacks(mStartBurst);
+    }
+
+    /**
+     * Called with the connection interval and PHY of every setConnectionParams notification.
+     */
+    synchronized void onConnectionParams(int phy, int intervalUnits) {
+        mReportedPhy = phy;
+        mIntervalUnits = intervalUnits;
+    }
+
+    private static int phyOf(int candidate) {
+        return candidate / CONNECTION_PRIORITIES.length;
+    }
+
+    private static int priorityOf(int candidate) {
+        return CONNECTION_PRIORITIES[candidate % CONNECTION_PRIORITIES.length];
+    }
+
+    private void applyCandidate() {
+        mReportedPhy = -1;
+        mLink.requestConnectionPriority(priorityOf(mCandidate));
+        mLink.changePhy(phyOf(mCandidate));
+        mHandler.postDelayed(mStartBurst, SETTLE_MS);
+    }
+
+    private final Runnable mStartBurst = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (LinkTuner.this) {
+                if (!mRunning) {
+                    return;
+                }
+                if (phyOf(mCandidate) == LinkProfile.PHY_2M && mReportedPhy == LinkProfile.PHY_1M) {
+                    Log.i(TAG, "2M PHY not supported by the peer");
+                    nextCandidate();
+                    return;
+                }
+                mProbe = new byte[mLink.getMtu() - ImageTransferService.ATT_HEADER_SIZE]; // All zero, a NoCommand
+                mProbesWritten = 0;
+                mBurstBytes = 0;
+                mLink.writeProbePacket(mProbe, mProbeWritten);
+            }
+        }
+    };
+
+    private final GattOperationQueue.Callback mProbeWritten = new GattOperationQueue.Callback() {
+        @Override
+        public void onComplete(int status) {
+            synchronized (LinkTuner.this) {
+                if (!mRunning) {
+                    return;
+                }
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    Log.w(TAG, "Probe write failed: " + status);
+                    nextCandidate();
+                    return;
+                }
+                mProbesWritten++;
+                if (mProbesWritten == WARMUP_PACKETS) {
+                    mBurstStartNanos = System.nanoTime();
+                } else if (mProbesWritten > WARMUP_PACKETS) {
+                    mBurstBytes += mProbe.length;
+                    long elapsedNanos = System.nanoTime() - mBurstStartNanos;
+                    if (elapsedNanos >= BURST_NANOS) {
+                        recordBurst(mProbesWritten - WARMUP_PACKETS, elapsedNanos);
+                        nextCandidate();
+                        return;
+                    }
+                }
+                mLink.writeProbePacket(mProbe, mProbeWritten);
+            }
+        }
+    };
+
+    private void recordBurst(int packets, long elapsedNanos) {
+        int phy = phyOf(mCandidate);
+        boolean onePacketPerInterval = false;
+        if (phy == LinkProfile.PHY_2M && mIntervalUnits > 0) {
+            float intervals = elapsedNanos / (mIntervalUnits * 1250000.0f);
+            onePacketPerInterval = packets / intervals < ONE_PACKET_PER_INTERVAL_LIMIT;
+        }
+        LinkProfile profile = new LinkProfile(mLink.getMtu(), phy, priorityOf(mCandidate), mIntervalUnits,
+                (int) (mBurstBytes * 8L * 1000000000L / elapsedNanos), onePacketPerInterval);
+        Log.i(TAG, "Probed " + profile);
+        mResults.add(profile);
+    }
+
+    private void nextCandidate() {
+        mCandidate++;
+        if (mCandidate < 2 * CONNECTION_PRIORITIES.length) {
+            applyCandidate();
+            return;
+        }
+        mRunning = false;
+        LinkProfile best = null;
+        for (LinkProfile profile : mResults) {
+            if (!profile.onePacketPerInterval && (best == null || profile.throughputBps > best.throughputBps)) {
+                best = profile;
+            }
+        }
+        if (best != null) {
+            Log.i(TAG, "Using " + best);
+            mLink.requestConnectionPriority(best.connectionPriority);
+            mLink.changePhy(best.phy);
+        } else {
+            mLink.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+            mLink.changePhy(LinkProfile.PHY_1M);
+        }
+        mListener.onLinkTuned(best);
+    }
+}
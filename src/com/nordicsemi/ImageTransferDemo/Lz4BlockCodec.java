@@ -0,0 +1,142 @@
+package com.nordicsemi.ImageTransferDemo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * LZ4 compression in small independent blocks, cheap to decode on an nRF52.
+ * The input is cut into blocks of {@link #BLOCK_SIZE} bytes. Each block is sent as a
+ * 2 byte little endian header followed by the block payload. Bits 0-14 of the header
+ * hold the payload length, bit 15 is set when the payload is stored uncompressed because
+ * LZ4 did not make it smaller. Compressed payloads use the standard LZ4 block format, so
+ * the receiver never needs more than one block of history.
+ */
+class Lz4BlockCodec implements CompressionCodec {
+    static final int BLOCK_SIZE = 4 * 1024;
+    static final int STORED_FLAG = 0x8000;
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_LOG = 12;
+
+    @Override
+    public int getId() {
+        return ID_LZ4_BLOCKS;
+    }
+
+    @Override
+    public String getName() {
+        return "lz4";
+    }
+
+    @Override
+    public void compress(InputStream in, OutputStream out) throws IOException {
+        byte[] src = new byte[BLOCK_SIZE];
+        byte[] dst = new byte[2 + BLOCK_SIZE + BLOCK_SIZE / 255 + 16];
+        int[] hashTable = new int[1 << HASH_LOG];
+        int length;
+        while ((length = readBlock(in, src)) > 0) {
+            int compressed = compressBlock(src, length, dst, 2, hashTable);
+            if (compressed < length) {
+                dst[0] = (byte) compressed;
+                dst[1] = (byte) (compressed >> 8);
+                out.write(dst, 0, 2 + compressed);
+            } else {
+                dst[0] = (byte) length;
+                dst[1] = (byte) ((length | STORED_FLAG) >> 8);
+                out.write(dst, 0, 2);
+                out.write(src, 0, length);
+            }
+        }
+    }
+
+    private static int readBlock(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int n = in.read(buffer, total, buffer.length - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Compresses one block with a greedy single probe hash search.
+     *
+     * @return The number of bytes written to dst.
+     */
+    static int compressBlock(byte[] src, int srcLength, byte[] dst, int dstOffset, int[] hashTable) {
+        int op = dstOffset;
+        int anchor = 0;
+        if (srcLength > MF_LIMIT) {
+            Arrays.fill(hashTable, -1);
+            int ip = 0;
+            int matchLimit = srcLength - LAST_LITERALS;
+            int searchLimit = srcLength - MF_LIMIT;
+            while (ip < searchLimit) {
+                int sequence = readInt(src, ip);
+                int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+                int ref = hashTable[hash];
+                hashTable[hash] = ip;
+                if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                    ip++;
+                    continue;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength]) {
+                    matchLength++;
+                }
+                op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op);
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+        return writeLastLiterals(src, anchor, srcLength - anchor, dst, op) - dstOffset;
+    }
+
+    private static int writeSequence(byte[] src, int literalStart, int literalLength, int offset,
+                                     int matchLength, byte[] dst, int op) {
+        int matchCode = matchLength - MIN_MATCH;
+        int token = op++;
+        dst[token] = (byte) ((Math.min(literalLength, 15) << 4) | Math.min(matchCode, 15));
+        op = writeLength(literalLength, dst, op);
+        System.arraycopy(src, literalStart, dst, op, literalLength);
+        op += literalLength;
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >> 8);
+        return writeLength(matchCode, dst, op);
+    }
+
+    private static int writeLastLiterals(byte[] src, int literalStart, int literalLength, byte[] dst, int op) {
+        dst[op++] = (byte) (Math.min(literalLength, 15) << 4);
+        op = writeLength(literalLength, dst, op);
+        System.arraycopy(src, literalStart, dst, op, literalLength);
+        return op + literalLength;
+    }
+
+    // Writes the extension bytes of a 4 bit length field
+    private static int writeLength(int length, byte[] dst, int op) {
+        if (length >= 15) {
+            length -= 15;
+            while (length >= 255) {
+                dst[op++] = (byte) 255;
+                length -= 255;
+            }
+            dst[op++] = (byte) length;
+        }
+        return op;
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF)
+                | (buffer[offset + 1] & 0xFF) << 8
+                | (buffer[offset + 2] & 0xFF) << 16
+                | (buffer[offset + 3] & 0xFF) << 24;
+    }
+}
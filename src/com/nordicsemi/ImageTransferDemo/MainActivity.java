@@ -19,13 +19,11 @@ package com.nordicsemi.ImageTransferDemo;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.DecimalFormat;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.zip.GZIPOutputStream;
 
 
@@ -36,6 +34,7 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 
 import android.content.BroadcastReceiver;
+import android.content.ClipData;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -46,7 +45,6 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.IBinder;
 import android.support.v4.content.LocalBroadcastManager;
 import android.text.Html;
@@ -54,6 +52,7 @@ import android.util.Log;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.RadioGroup;
@@ -67,6 +66,7 @@ public class MainActivity extends Activity implements RadioGroup.OnCheckedChange
     public static final String TAG = "file_transfer_main";
     private static final int UART_PROFILE_CONNECTED = 20;
     private static final int UART_PROFILE_DISCONNECTED = 21;
+    private static final int PHY_SPINNER_AUTO = 2; // Last entry of spinner_phy, picks the PHY by measurement
 
     public enum AppLogFontType {APP_NORMAL, APP_ERROR, PEER_NORMAL, PEER_ERROR}
 
@@ -75,15 +75,20 @@ public class MainActivity extends Activity implements RadioGroup.OnCheckedChange
     private TextView mTextViewLog, mTextViewFileLabel, mTextViewConInt, mTextViewMtu;
     private Button mBtnDownload;
     private Button mBtnGZDownload;
+    private Button mBtnAutoDownload;
+    private Button mBtnDeltaDownload;
+    private Button mBtnArchiveDownload;
     private Button mBtnUpdateFps;
     private Button mBtnStartStopAnim;
     private ProgressBar mProgressBarFileStatus;
     private Spinner  mSpinnerPhy;
+    private CheckBox mCheckBoxDirectConnect;
     private TextView mTextViewFrameTime;
     private TextView mTextView_FrameTimeOnDevice;
 
     private int mState = UART_PROFILE_DISCONNECTED;
     private ImageTransferService mService = null;
+    private ImageTransferService.LocalBinder mBinder = null;
     private BluetoothDevice mDevice = null;
     private BluetoothAdapter mBtAdapter = null;
     private Button btnConnectDisconnect;
@@ -92,30 +97,42 @@ public class MainActivity extends Activity implements RadioGroup.OnCheckedChange
     private long mStartTimeImageTransfer;
 
     private Uri m_picked_file_uri;
+    private List<Uri> m_picked_file_uris = new ArrayList<>();
 
     private static final int OPEN_REQUEST_CODE = 41;
 
     private ProgressDialog mConnectionProgDialog;
 
     private enum AppRunMode {Disconnected, Connected, ConnectedDuringSingleTransfer, ConnectedDuringStream}
-    private enum CmdInfoCharCommands {setIncomingFileParams, setConnectionParams, setOutgoingFileParams}
-    private enum OutgoingFileParams {ReadyToReceive, TransmissionFinished, ReadyToReceiveContinuous, ReceiverBusy}
 
-    // TODO There are some unused commands, cleanUp required
-    public enum BleCommand {NoCommand, StartSingleCapture, StartStreaming, StopStreaming, ChangeResolution, ChangePhy, GetBleParams, SetIncomingFileParams, ChangeFrameTime, StartStopAnim}
+    private final BleProtocol.CmdInfoMessage mCmdInfo = new BleProtocol.CmdInfoMessage(); // UI thread only
 
-    Handler guiUpdateHandler = new Handler();
-    Runnable guiUpdateRunnable = new Runnable(){
-        @SuppressLint("DefaultLocale")
+    // Called by the service on the main thread, at a bounded rate and only while a file is sent
+    private final TransferListener mTransferListener = new TransferListener() {
         @Override
-        public void run(){
-            if(mTextViewFileLabel != null && mService != null) {
-                mTextViewFileLabel.setText(String.format("Sending: %d / %d", mService.getTransmitted_bytes(), mService.getTotalTransmissionBytes()));
-                if(mService.getTotalTransmissionBytes() > 0) {
-                    mProgressBarFileStatus.setProgress(mService.getTransmitted_bytes() * 100 / mService.getTotalTransmissionBytes());
-                }
+        public void onTransferProgress(TransferMetrics metrics) {
+            mTextViewFileLabel.setText("Sending: " + metrics.getSentBytes() + " / " + metrics.getTotalBytes()
+                    + ", " + metrics.getThroughputBps() / 1000 + " kbps");
+            mProgressBarFileStatus.setProgress(metrics.getProgressPercent());
+        }
+
+        @Override
+        public void onTransferEnded(TransferMetrics metrics, boolean completed) {
+            onTransferProgress(metrics);
+            if (!completed) {
+                writeToLog("Transfer aborted at " + metrics.getSentBytes() + " bytes", AppLogFontType.APP_ERROR);
             }
-            guiUpdateHandler.postDelayed(this, 50);
+            if (mService != null && mService.isConnected()) {
+                setGuiByAppMode(AppRunMode.Connected);
+            }
+        }
+
+        @Override
+        public void onImageReceived(ImageReceiver receiver) {
+            DecimalFormat df = new DecimalFormat("0.0");
+            mTextViewFileLabel.setText("Image received: " + receiver.getImageLength() + " bytes.");
+            writeToLog("Image received in " + df.format(receiver.getImageNanos() / 1000000000.0f) + " seconds. "
+                    + receiver.getImageKbps() + " kbps", AppLogFontType.APP_NORMAL);
         }
     };
 
@@ -131,6 +148,7 @@ public class MainActivity extends Activity implements RadioGroup.OnCheckedChange
             return;
         }
         btnConnectDisconnect    = (Button) findViewById(R.id.btn_select);
+        mCheckBoxDirectConnect = (CheckBox) findViewById(R.id.checkBoxDirectConnect);
         mTextViewLog = (TextView)findViewById(R.id.textViewLog);
         mTextViewFileLabel = (TextView)findViewById(R.id.textViewFileLabel);
         mTextViewConInt = (TextView)findViewById(R.id.textViewCI);
@@ -138,6 +156,9 @@ public class MainActivity extends Activity implements RadioGroup.OnCheckedChange
         mProgressBarFileStatus = (ProgressBar)findViewById(R.id.progressBarFile);
         mBtnDownload = (Button)findViewById(R.id.buttonTakePicture);
         mBtnGZDownload = (Button)findViewById(R.id.buttonGZDownload);
+        mBtnAutoDownload = (Button)findViewById(R.id.buttonAutoDownload);
+        mBtnDeltaDownload = (Button)findViewById(R.id.buttonDeltaDownload);
+        mBtnArchiveDownload = (Button)findViewById(R.id.buttonArchiveDownload);
         mBtnUpdateFps = (Button)findViewById(R.id.button_update_fps);
         mBtnStartStopAnim = (Button) findViewById(R.id.button_anim_start_stop);
         Button mBtnChoseFile = (Button) findViewById(R.id.button_chosefile);
@@ -196,12 +217,44 @@ public class MainActivity extends Activity implements RadioGroup.OnCheckedChange
             }
         });
 
+        mBtnAutoDownload.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if(mService != null){
+                    mService.fts_sendFileAutoCodec(m_picked_file_uri);
+                    mStartTimeImageTransfer = System.currentTimeMillis();
+                }
+            }
+        });
+
+        mBtnDeltaDownload.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if(mService != null){
+                    mService.fts_sendFileDelta(m_picked_file_uri);
+                    mStartTimeImageTransfer = System.currentTimeMillis();
+                }
+            }
+        });
+
+        mBtnArchiveDownload.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if(mService != null && !m_picked_file_uris.isEmpty()){
+                    mService.fts_sendArchive(m_picked_file_uris, "archive.fts", null);
+                    mStartTimeImageTransfer = System.currentTimeMillis();
+                }
+            }
+        });
+
         mBtnChoseFile.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
                 Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
                 intent.addCategory(Intent.CATEGORY_OPENABLE);
                 intent.setType("text/plain");
+                intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
+                intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION);
                 startActivityForResult(intent, OPEN_REQUEST_CODE);
             }
         });
@@ -213,8 +266,7 @@ public class MainActivity extends Activity implements RadioGroup.OnCheckedChange
                 if(mService != null){
                     short textview_value = Short.parseShort(mTextViewFrameTime.getEditableText().toString());
                     updateFrameTimeOnDeviceTextView(textview_value);
-                    byte[] bytes = ByteBuffer.allocate(2).putShort(textview_value).array();
-                    mService.sendCommand(BleCommand.ChangeFrameTime.ordinal(), bytes);
+                    mService.sendCommand(BleProtocol.changeFrameTime(textview_value));
                 }
             }
         });
@@ -224,29 +276,62 @@ public class MainActivity extends Activity implements RadioGroup.OnCheckedChange
             @Override
             public void onClick(View view) {
                 if(mService != null){
-                    byte[] anim_status = new byte[1];
                     if(isAnimationRunning){
-                        anim_status[0] = 0;
                         mBtnStartStopAnim.setText("Start anim");
                         isAnimationRunning = false;
                     } else {
-                        anim_status[0] = 1;
                         mBtnStartStopAnim.setText("Stop anim");
                         isAnimationRunning = true;
                     }
-                    mService.sendCommand(BleCommand.StartStopAnim.ordinal(), anim_status);
+                    mService.sendCommand(BleProtocol.startStopAnim(isAnimationRunning));
                 }
             }
         });
 
 
+        // Long press on the log writes the GATT event trace, see GattTraceDecoder
+        mTextViewLog.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                if (mService == null) {
+                    return false;
+                }
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        String message;
+                        AppLogFontType type = AppLogFontType.APP_NORMAL;
+                        try {
+                            message = "GATT trace written to " + mService.dumpGattTrace();
+                        } catch (IOException e) {
+                            message = "Unable to write the GATT trace: " + e.getMessage();
+                            type = AppLogFontType.APP_ERROR;
+                        }
+                        final String logMessage = message;
+                        final AppLogFontType logType = type;
+                        runOnUiThread(new Runnable() {
+                            public void run() {
+                                writeToLog(logMessage, logType);
+                            }
+                        });
+                    }
+                }, "gatt-trace-dump").start();
+                return true;
+            }
+        });
+
         mSpinnerPhy.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
             @Override
             public void onItemSelected(AdapterView<?> parentView, View selectedItemView, int position, long id) {
-                if(mService != null && mService.isConnected()){
-                    byte []cmdData = new byte[1];
-                    cmdData[0] = (byte)position;
-                    mService.sendCommand(BleCommand.ChangePhy.ordinal(), cmdData);
+                if(mService != null && mService.isConnected() && position == PHY_SPINNER_AUTO){
+                    if(mService.fts_autoTuneLink()) {
+                        writeToLog("Tuning the link...", AppLogFontType.APP_NORMAL);
+                    } else {
+                        writeToLog("Link tuning not possible during a transfer", AppLogFontType.APP_ERROR);
+                    }
+                }
+                else if(mService != null && mService.isConnected()){
+                    mService.sendCommand(BleProtocol.changePhy(position));
                 }
             }
 
@@ -256,8 +341,6 @@ public class MainActivity extends Activity implements RadioGroup.OnCheckedChange
         });
 
         // Set initial UI state
-        guiUpdateHandler.postDelayed(guiUpdateRunnable, 0);
-
         setGuiByAppMode(AppRunMode.Disconnected);
     }
 
@@ -265,17 +348,20 @@ public class MainActivity extends Activity implements RadioGroup.OnCheckedChange
     //UART service connected/disconnected
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
         public void onServiceConnected(ComponentName className, IBinder rawBinder) {
-            mService = ((ImageTransferService.LocalBinder) rawBinder).getService();
+            mBinder = (ImageTransferService.LocalBinder) rawBinder;
+            mService = mBinder.getService();
             Log.d(TAG, "onServiceConnected mService= " + mService);
             if (!mService.initialize()) {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
             }
+            mBinder.addTransferListener(mTransferListener);
         }
 
         public void onServiceDisconnected(ComponentName classname) {
        ////     mService.disconnect(mDevice);
         		mService = null;
+        		mBinder = null;
         }
     };
 
@@ -286,6 +372,9 @@ public class MainActivity extends Activity implements RadioGroup.OnCheckedChange
             case Connected:
                 mBtnDownload.setEnabled(true);
                 mBtnGZDownload.setEnabled(true);
+                mBtnAutoDownload.setEnabled(true);
+                mBtnDeltaDownload.setEnabled(true);
+                mBtnArchiveDownload.setEnabled(true);
                 btnConnectDisconnect.setText(R.string.disconnect);
                 mSpinnerPhy.setEnabled(true);
                 break;
@@ -293,6 +382,9 @@ public class MainActivity extends Activity implements RadioGroup.OnCheckedChange
             case Disconnected:
                 mBtnDownload.setEnabled(false);
                 mBtnGZDownload.setEnabled(false);
+                mBtnAutoDownload.setEnabled(false);
+                mBtnDeltaDownload.setEnabled(false);
+                mBtnArchiveDownload.setEnabled(false);
                 btnConnectDisconnect.setText(R.string.connect_bt_text);
                 mSpinnerPhy.setEnabled(false);
                 mSpinnerPhy.setSelection(0);
@@ -303,6 +395,9 @@ public class MainActivity extends Activity implements RadioGroup.OnCheckedChange
             case ConnectedDuringStream:
                 mBtnDownload.setEnabled(false);
                 mBtnGZDownload.setEnabled(false);
+                mBtnAutoDownload.setEnabled(false);
+                mBtnDeltaDownload.setEnabled(false);
+                mBtnArchiveDownload.setEnabled(false);
                 break;
         }
     }
@@ -367,43 +462,43 @@ public class MainActivity extends Activity implements RadioGroup.OnCheckedChange
         //*********************//
         if (action.equals(ImageTransferService.ACTION_GATT_SERVICES_DISCOVERED)) {
             mService.enableTXNotification();
-            mService.sendCommand(BleCommand.GetBleParams.ordinal(), null);
+            mService.sendCommand(BleProtocol.command(BleProtocol.BleCommand.GetBleParams, null));
             setGuiByAppMode(AppRunMode.Connected);
+            LinkProfile profile = mService.getLinkProfile();
+            if (profile != null) {
+                // The service already applied it, this only shows the PHY in use
+                mMtuRequested = true;
+                mSpinnerPhy.setSelection(profile.phy);
+                writeToLog("Using the last link settings: " + profile, AppLogFontType.APP_NORMAL);
+            }
         }
         if (action.equals(ImageTransferService.ACTION_CMD_INFO_AVAILABLE)) {
             final byte[] txValue = intent.getByteArrayExtra(ImageTransferService.EXTRA_DATA);
             runOnUiThread(new Runnable() {
                 @SuppressLint("SetTextI18n")
                 public void run() {
+                    if (!mCmdInfo.wrap(txValue)) {
+                        Log.w(TAG, "Malformed CMD_INFO message");
+                        return;
+                    }
                     try {
-                        CmdInfoCharCommands cmd = CmdInfoCharCommands.values()[txValue[0] - 1];
-                        switch(cmd) {
+                        switch(mCmdInfo.getCommand()) {
                             case setIncomingFileParams:
                                 // Start a new file transfer
-                                ByteBuffer byteBuffer = ByteBuffer.wrap(Arrays.copyOfRange(txValue, 1, 5));
-                                byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
-                                int fileSize = byteBuffer.getInt();
-                                mTextViewFileLabel.setText("Incoming file: " + fileSize + " bytes.");
+                                mTextViewFileLabel.setText("Incoming file: " + mCmdInfo.getIncomingFileSize() + " bytes.");
                                 mStartTimeImageTransfer = System.currentTimeMillis();
                                 break;
 
                             case setConnectionParams:
-                                ByteBuffer mtuBB = ByteBuffer.wrap(Arrays.copyOfRange(txValue, 1, 3));
-                                mtuBB.order(ByteOrder.LITTLE_ENDIAN);
-                                short mtu = mtuBB.getShort();
+                                int mtu = mCmdInfo.getMtu();
                                 mTextViewMtu.setText(mtu + " bytes");
                                 if(!mMtuRequested && mtu < 64){
-                                    mService.requestMtu(ImageTransferService.targetMtu);
-                                    writeToLog("Requesting 240 byte MTU from app", AppLogFontType.APP_NORMAL);
+                                    // The service requests it right away, so the connection trace includes it
+                                    writeToLog("Service requested " + ImageTransferService.targetMtu + " byte MTU", AppLogFontType.APP_NORMAL);
                                     mMtuRequested = true;
                                 }
-                                ByteBuffer ciBB = ByteBuffer.wrap(Arrays.copyOfRange(txValue, 3, 5));
-                                ciBB.order(ByteOrder.LITTLE_ENDIAN);
-                                short conInterval = ciBB.getShort();
-                                mTextViewConInt.setText((float)conInterval * 1.25f + "ms");
-                                short txPhy = txValue[5];
-                                // short rxPhy = txValue[6];
-                                if(txPhy == 0x0001 && mSpinnerPhy.getSelectedItemPosition() == 1) {
+                                mTextViewConInt.setText((float)mCmdInfo.getConnectionIntervalUnits() * 1.25f + "ms");
+                                if(mCmdInfo.getTxPhy() == 0x0001 && mSpinnerPhy.getSelectedItemPosition() == 1) {
                                     mSpinnerPhy.setSelection(0);
                                     writeToLog("2Mbps not supported!", AppLogFontType.APP_ERROR);
                                 }
@@ -411,17 +506,13 @@ public class MainActivity extends Activity implements RadioGroup.OnCheckedChange
                                     writeToLog("Parameters updated.", AppLogFontType.APP_NORMAL);
                                 }
 
-                                ByteBuffer frame_timeBB = ByteBuffer.wrap(Arrays.copyOfRange(txValue, 7, 9));
-                                frame_timeBB.order(ByteOrder.LITTLE_ENDIAN);
-                                short frame_time = frame_timeBB.getShort();
-                                updateFrameTimeOnDeviceTextView(frame_time);
+                                if(mCmdInfo.hasFrameTime()) {
+                                    updateFrameTimeOnDeviceTextView((short) mCmdInfo.getFrameTimeMs());
+                                }
                                 break;
                             case setOutgoingFileParams:
-                                OutgoingFileParams ofp_cmd = OutgoingFileParams.values()[txValue[1]];
-                                switch(ofp_cmd) {
-                                    case ReadyToReceive:
-                                        mService.fts_start_transmit();
-                                        break;
+                                // ReadyToReceive, ReadyToReceiveContinuous, ReceiverBusy and GrantCredits are handled by the service
+                                switch(mCmdInfo.getOutgoingFileParams()) {
                                     case TransmissionFinished:
                                         long elapsedTime = System.currentTimeMillis() - mStartTimeImageTransfer;
                                         float elapsedSeconds = (float)elapsedTime / 1000.0f;
@@ -430,12 +521,17 @@ public class MainActivity extends Activity implements RadioGroup.OnCheckedChange
                                         String elapsedSecondsString = df.format(elapsedSeconds);
                                         String kbpsString = df.format((float)mService.getTotalTransmissionBytes() / elapsedSeconds * 8.0f / 1000.0f);
                                         writeToLog("Completed in " + elapsedSecondsString + " seconds. " + kbpsString + " kbps", AppLogFontType.APP_NORMAL);
+                                        writeToLog("Bulk window " + mService.getBulkWindowSize() + " bytes, handshake wait "
+                                                + df.format(mService.getAverageHandshakeWaitNanos() / 1000000.0f) + " ms", AppLogFontType.APP_NORMAL);
+                                        TransferStats stats = mService.getTransferStats();
+                                        if(stats != null && stats.isCompressionSkipped()) {
+                                            writeToLog("Compression skipped, " + stats.getFileName() + " looks incompressible", AppLogFontType.APP_NORMAL);
+                                        }
                                         break;
-                                    case ReadyToReceiveContinuous:
-                                        mService.setContinuousTransmissionReadyState(true);
-                                        break;
-                                    case ReceiverBusy:
-                                        mService.setContinuousTransmissionReadyState(false);
+                                    case ContentStatus:
+                                        if(mCmdInfo.hasStatus() && mCmdInfo.getStatus() != 0) {
+                                            writeToLog("File already on the device, upload skipped", AppLogFontType.APP_NORMAL);
+                                        }
                                         break;
                                     default:
                                         break;
@@ -455,9 +551,26 @@ public class MainActivity extends Activity implements RadioGroup.OnCheckedChange
             mService.disconnect();
         }
 
-        if (action.equals(ImageTransferService.ACTION_GATT_TRANSFER_FINISHED)) {
+        if (action.equals(ImageTransferService.ACTION_CONNECTION_READY)) {
+            ConnectionTrace trace = mService.getConnectionTrace();
+            if (trace != null) {
+                writeToLog("Connection setup: " + trace, AppLogFontType.APP_NORMAL);
+            }
+        }
 
-            setGuiByAppMode(AppRunMode.Connected);
+        if (action.equals(ImageTransferService.ACTION_LINK_TUNED)) {
+            runOnUiThread(new Runnable() {
+                public void run() {
+                    LinkProfile profile = mService.getLinkProfile();
+                    if (profile != null) {
+                        writeToLog("Link tuned: " + profile, AppLogFontType.APP_NORMAL);
+                        mSpinnerPhy.setSelection(profile.phy);
+                    } else {
+                        writeToLog("Link tuning failed", AppLogFontType.APP_ERROR);
+                        mSpinnerPhy.setSelection(0);
+                    }
+                }
+            });
         }
 
         }
@@ -475,10 +588,11 @@ public class MainActivity extends Activity implements RadioGroup.OnCheckedChange
         intentFilter.addAction(ImageTransferService.ACTION_GATT_DISCONNECTED);
         intentFilter.addAction(ImageTransferService.ACTION_GATT_SERVICES_DISCOVERED);
         intentFilter.addAction(ImageTransferService.ACTION_DATA_AVAILABLE);
-        intentFilter.addAction(ImageTransferService.ACTION_GATT_TRANSFER_FINISHED);
         intentFilter.addAction(ImageTransferService.ACTION_CMD_INFO_AVAILABLE);
         intentFilter.addAction(ImageTransferService.ACTION_FTS_NOTIFICATION);
         intentFilter.addAction(ImageTransferService.DEVICE_DOES_NOT_SUPPORT_FILE_TRANSFER);
+        intentFilter.addAction(ImageTransferService.ACTION_LINK_TUNED);
+        intentFilter.addAction(ImageTransferService.ACTION_CONNECTION_READY);
         return intentFilter;
     }
     @Override
@@ -496,6 +610,9 @@ public class MainActivity extends Activity implements RadioGroup.OnCheckedChange
         } catch (Exception ignore) {
             Log.e(TAG, ignore.toString());
         }
+        if (mBinder != null) {
+            mBinder.removeTransferListener(mTransferListener);
+        }
         unbindService(mServiceConnection);
         mService.stopSelf();
         mService= null;
@@ -549,7 +666,7 @@ public class MainActivity extends Activity implements RadioGroup.OnCheckedChange
 
                     Log.d(TAG, "... onActivityResultdevice.address==" + mDevice + "mserviceValue" + mService);
                     //((TextView) findViewById(R.id.deviceName)).setText(mDevice.getName()+ " - connecting");
-                    mService.connect(deviceAddress);
+                    mService.connect(deviceAddress, !mCheckBoxDirectConnect.isChecked());
 
                     mConnectionProgDialog.show();
                 }
@@ -570,7 +687,26 @@ public class MainActivity extends Activity implements RadioGroup.OnCheckedChange
             case OPEN_REQUEST_CODE:
                 if (resultCode == Activity.RESULT_OK)
                 {
-                   m_picked_file_uri = data.getData();
+                   m_picked_file_uris.clear();
+                   ClipData clipData = data.getClipData();
+                   if (clipData != null && clipData.getItemCount() > 0) {
+                       // Several files were picked, the single file buttons send the first one
+                       for (int i = 0; i < clipData.getItemCount(); i++) {
+                           m_picked_file_uris.add(clipData.getItemAt(i).getUri());
+                       }
+                       m_picked_file_uri = m_picked_file_uris.get(0);
+                   } else {
+                       m_picked_file_uri = data.getData();
+                       m_picked_file_uris.add(m_picked_file_uri);
+                   }
+                   // An interrupted upload is resumed from its URI, possibly after a restart of the app
+                   for (Uri uri : m_picked_file_uris) {
+                       try {
+                           getContentResolver().takePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                       } catch (SecurityException e) {
+                           Log.w(TAG, "No persistable permission for " + uri + ": " + e);
+                       }
+                   }
                    if(!mMtuRequested){
                        mService.requestMtu(ImageTransferService.targetMtu);
                        writeToLog("Requesting 240 byte MTU from app", AppLogFontType.APP_NORMAL);
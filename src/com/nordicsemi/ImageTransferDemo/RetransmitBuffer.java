@@ -0,0 +1,122 @@
+package com.nordicsemi.ImageTransferDemo;
+
+import java.util.zip.CRC32;
+
+/**
+ * Copies of the packets of the bulk window in flight, kept until the receiver confirms the
+ * window CRC. The buffer is sized to the receiver's maximum window once per transfer and
+ * reused for every window, so a retransmission never has to go back to the send cursor.
+ */
+class RetransmitBuffer {
+    // The bitmap of bad packets has to fit a notification at the default MTU (20 - 3 bytes)
+    static final int MAX_PACKETS = 17 * 8;
+
+    private byte[] mData = new byte[0];
+    private final int[] mOffsets = new int[MAX_PACKETS + 1];
+    private int mCount;
+    private final CRC32 mCrc = new CRC32();
+    private final int[] mMissing = new int[MAX_PACKETS];
+    private int mMissingCount;
+    private int mMissingNext;
+    private int mRetries;
+    private byte[] mPacket = new byte[0];
+
+    /**
+     * Starts a new transfer.
+     *
+     * @param capacity Largest number of bytes in a window.
+     */
+    void reset(int capacity) {
+        if (mData.length < capacity) {
+            mData = new byte[capacity];
+        }
+        clear();
+    }
+
+    /**
+     * Drops the packets of a confirmed window.
+     */
+    void clear() {
+        mCount = 0;
+        mCrc.reset();
+        mMissingCount = 0;
+        mMissingNext = 0;
+        mRetries = 0;
+    }
+
+    boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * @return true if a packet of the given length would not fit into the window anymore.
+     */
+    boolean isFull(int nextLength) {
+        return mCount == MAX_PACKETS || mOffsets[mCount] + nextLength > mData.length;
+    }
+
+    void add(byte[] packet) {
+        int offset = mOffsets[mCount];
+        System.arraycopy(packet, 0, mData, offset, packet.length);
+        mCrc.update(packet, 0, packet.length);
+        mOffsets[++mCount] = offset + packet.length;
+    }
+
+    int getPacketCount() {
+        return mCount;
+    }
+
+    /**
+     * @return CRC32 over all bytes of the window, as the receiver computes it.
+     */
+    int getCrc() {
+        return (int) mCrc.getValue();
+    }
+
+    /**
+     * Queues the packets the receiver reported as bad for retransmission.
+     *
+     * @param bitmap One bit per packet of the window, LSB first. If no bit is set, e.g. because
+     *               the receiver only knows the CRC did not match, the whole window is queued.
+     */
+    void markMissing(byte[] bitmap, int offset, int length) {
+        mMissingCount = 0;
+        mMissingNext = 0;
+        mRetries++;
+        for (int i = 0; i < mCount && i / 8 < length; i++) {
+            if ((bitmap[offset + i / 8] & (1 << (i % 8))) != 0) {
+                mMissing[mMissingCount++] = i;
+            }
+        }
+        if (mMissingCount == 0) {
+            for (int i = 0; i < mCount; i++) {
+                mMissing[mMissingCount++] = i;
+            }
+        }
+    }
+
+    /**
+     * @return How many times the current window was reported bad.
+     */
+    int getRetries() {
+        return mRetries;
+    }
+
+    boolean hasMissing() {
+        return mMissingNext < mMissingCount;
+    }
+
+    /**
+     * Returns the next packet to retransmit. The returned array is reused like the packets of
+     * {@link SendCursor#next(int)}.
+     */
+    byte[] nextMissing() {
+        int index = mMissing[mMissingNext++];
+        int length = mOffsets[index + 1] - mOffsets[index];
+        if (mPacket.length != length) {
+            mPacket = new byte[length];
+        }
+        System.arraycopy(mData, mOffsets[index], mPacket, 0, length);
+        return mPacket;
+    }
+}
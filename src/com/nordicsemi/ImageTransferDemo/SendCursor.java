@@ -0,0 +1,383 @@
+package com.nordicsemi.ImageTransferDemo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Read cursor over the outgoing file.
+ * A worker thread produces the file into a small fixed pool of blocks and stays just
+ * ahead of the GATT writer, so the memory used by a transfer does not depend on the
+ * file size. The worker either copies a source stream or runs a {@link Producer}, e.g.
+ * a compressor, so radio time and CPU time overlap. Packets are sliced out of the
+ * blocks into a reused payload array and there is no allocation per packet.
+ * <p>
+ * The GATT side never waits for the worker: {@link #isReady()} tells whether data is there, and
+ * if it is not, the {@link Listener} is called as soon as the worker hands over the next block.
+ */
+class SendCursor {
+    static final int LENGTH_UNKNOWN = -1;
+    static final int BLOCK_SIZE = 16 * 1024;
+    static final int BLOCK_COUNT = 4;
+
+    /**
+     * Writes the content of the file to the cursor from the worker thread.
+     */
+    interface Producer {
+        void produce(OutputStream out) throws IOException;
+    }
+
+    interface Listener {
+        /**
+         * Called on the worker thread when data arrives after {@link #isReady()} returned false.
+         */
+        void onDataAvailable(SendCursor cursor);
+    }
+
+    private static class Block {
+        final byte[] data;
+        int length;
+
+        Block(int size) {
+            data = new byte[size];
+        }
+    }
+
+    // Posted by the worker when the producer is done or failed
+    private static final Block END_OF_SOURCE = new Block(0);
+
+    private final int mLength;
+    private int mPosition;
+    private boolean mEnded;
+    private IOException mError;
+    private byte[] mScratch = new byte[0];
+    private byte[] mPacket = new byte[0];
+    private Block mCurrent;
+    private int mCurrentOffset;
+
+    private final BlockingQueue<Block> mFreeBlocks = new ArrayBlockingQueue<>(BLOCK_COUNT);
+    private final BlockingQueue<Block> mFilledBlocks = new ArrayBlockingQueue<>(BLOCK_COUNT + 1);
+    private final Thread mWorker;
+    private volatile IOException mWorkerError;
+    private volatile boolean mClosed;
+    private volatile Listener mListener;
+    private final AtomicBoolean mWaiting = new AtomicBoolean(); // The writer side found no data
+
+    /**
+     * Creates a cursor that copies a stream.
+     *
+     * @param source Stream to send, it is closed by the cursor.
+     * @param length Number of bytes announced to the receiver. Reading stops there even if
+     *               the stream is longer.
+     */
+    SendCursor(InputStream source, int length) {
+        this(source, length, 0);
+    }
+
+    /**
+     * Creates a cursor that copies a stream from startOffset on, to resume a transfer.
+     */
+    SendCursor(final InputStream source, final int length, final int startOffset) {
+        this(new Producer() {
+            @Override
+            public void produce(OutputStream out) throws IOException {
+                try {
+                    long toSkip = startOffset;
+                    while (toSkip > 0) {
+                        long skipped = source.skip(toSkip);
+                        if (skipped <= 0) {
+                            throw new IOException("Source is shorter than the resume offset " + startOffset);
+                        }
+                        toSkip -= skipped;
+                    }
+                    byte[] buffer = new byte[BLOCK_SIZE];
+                    int left = length - startOffset;
+                    int n;
+                    while (left > 0 && (n = source.read(buffer, 0, Math.min(buffer.length, left))) != -1) {
+                        out.write(buffer, 0, n);
+                        left -= n;
+                    }
+                } finally {
+                    source.close();
+                }
+            }
+        }, length, startOffset, 0);
+    }
+
+    /**
+     * Creates a cursor that sends whatever the producer writes.
+     *
+     * @param length Number of bytes the producer will write, or {@link #LENGTH_UNKNOWN}
+     *               if the length is only known once the producer is done.
+     */
+    SendCursor(Producer producer, int length) {
+        this(producer, length, 0, 0);
+    }
+
+    /**
+     * Creates a cursor that drops the first startOffset bytes the producer writes, to resume
+     * a transfer whose content is generated, e.g. compressed, on the fly.
+     */
+    SendCursor(Producer producer, int length, int startOffset) {
+        this(producer, length, startOffset, startOffset);
+    }
+
+    private SendCursor(final Producer producer, int length, int startOffset, final int dropBytes) {
+        mLength = length;
+        mPosition = startOffset;
+        for (int i = 0; i < BLOCK_COUNT; i++) {
+            mFreeBlocks.add(new Block(BLOCK_SIZE));
+        }
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runProducer(producer, dropBytes);
+            }
+        }, "fts-producer");
+        mWorker.start();
+    }
+
+    private void runProducer(Producer producer, int dropBytes) {
+        BlockOutputStream out = new BlockOutputStream(dropBytes);
+        try {
+            producer.produce(out);
+            out.flush();
+        } catch (IOException e) {
+            if (!mClosed) {
+                mWorkerError = e;
+            }
+        } finally {
+            mFilledBlocks.offer(END_OF_SOURCE);
+            notifyListener();
+        }
+    }
+
+    private void notifyListener() {
+        Listener listener = mListener;
+        if (mWaiting.compareAndSet(true, false) && listener != null) {
+            listener.onDataAvailable(this);
+        }
+    }
+
+    /**
+     * Fills the free blocks and hands them to the writer side. Blocks the worker
+     * while all blocks are waiting to be sent.
+     */
+    private class BlockOutputStream extends OutputStream {
+        private Block mBlock;
+        private int mDropBytes;
+
+        BlockOutputStream(int dropBytes) {
+            mDropBytes = dropBytes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mDropBytes > 0) {
+                int n = Math.min(len, mDropBytes);
+                mDropBytes -= n;
+                off += n;
+                len -= n;
+            }
+            try {
+                while (len > 0) {
+                    if (mClosed) {
+                        throw new IOException("Cursor closed");
+                    }
+                    if (mBlock == null) {
+                        mBlock = mFreeBlocks.take();
+                        mBlock.length = 0;
+                    }
+                    int n = Math.min(len, mBlock.data.length - mBlock.length);
+                    System.arraycopy(b, off, mBlock.data, mBlock.length, n);
+                    mBlock.length += n;
+                    off += n;
+                    len -= n;
+                    if (mBlock.length == mBlock.data.length) {
+                        mFilledBlocks.put(mBlock);
+                        mBlock = null;
+                        notifyListener();
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("Cursor closed");
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (mBlock != null && mBlock.length > 0) {
+                try {
+                    mFilledBlocks.put(mBlock);
+                } catch (InterruptedException e) {
+                    throw new IOException("Cursor closed");
+                }
+                mBlock = null;
+                notifyListener();
+            }
+        }
+    }
+
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return The announced length, or {@link #LENGTH_UNKNOWN}.
+     */
+    int length() {
+        return mLength;
+    }
+
+    boolean isLengthKnown() {
+        return mLength != LENGTH_UNKNOWN;
+    }
+
+    /**
+     * @return The bytes left to send, only meaningful if the length is known.
+     */
+    int remaining() {
+        return mLength - mPosition;
+    }
+
+    /**
+     * Returns whether everything has been sent. If the length is not known up front and the
+     * producer did not tell yet whether more data is coming, it is not empty. Never waits.
+     */
+    boolean isEmpty() {
+        if (isLengthKnown()) {
+            return mPosition >= mLength;
+        }
+        if (mCurrent != null && mCurrentOffset < mCurrent.length) {
+            return false;
+        }
+        try {
+            return !nextBlock() && mEnded;
+        } catch (IOException e) {
+            // Kept by the cursor and thrown again by the next call to next()
+            return false;
+        }
+    }
+
+    /**
+     * Returns whether {@link #next(int)} can be called without waiting for the producer: data is
+     * buffered, or the producer is done. Otherwise the listener is called once it hands over more.
+     */
+    boolean isReady() {
+        if (mEnded || (mCurrent != null && mCurrentOffset < mCurrent.length) || !mFilledBlocks.isEmpty()) {
+            return true;
+        }
+        mWaiting.set(true);
+        // The worker may have handed over a block before it saw the flag
+        return !mFilledBlocks.isEmpty();
+    }
+
+    /**
+     * Returns whether the producer is done and all of its output has been sent.
+     * Unlike {@link #isEmpty()} this never waits for the producer.
+     */
+    boolean isFinished() {
+        if (isLengthKnown()) {
+            return mPosition >= mLength;
+        }
+        return mEnded && mError == null && (mCurrent == null || mCurrentOffset == mCurrent.length);
+    }
+
+    /**
+     * @return Offset of the next byte to send, counted from the start of the file.
+     */
+    int position() {
+        return mPosition;
+    }
+
+    /**
+     * Returns the next packet of at most maxLength bytes and advances the cursor.
+     * The returned array is reused by the next call, so it must be handed to the
+     * characteristic before calling again. A new array is only allocated when the
+     * packet length changes (the last packet of a file or an MTU change). Only call it if
+     * {@link #isReady()}, the packet is cut short where the buffered data ends.
+     *
+     * @throws IOException If the producer failed or ended early.
+     */
+    byte[] next(int maxLength) throws IOException {
+        int length = isLengthKnown() ? Math.min(maxLength, remaining()) : maxLength;
+        if (mScratch.length != length) {
+            mScratch = new byte[length];
+        }
+        int copied = 0;
+        while (copied < length) {
+            if (mCurrent == null || mCurrentOffset == mCurrent.length) {
+                if (!nextBlock()) {
+                    break;
+                }
+            }
+            int n = Math.min(length - copied, mCurrent.length - mCurrentOffset);
+            System.arraycopy(mCurrent.data, mCurrentOffset, mScratch, copied, n);
+            mCurrentOffset += n;
+            copied += n;
+        }
+        mPosition += copied;
+        if (copied == mScratch.length) {
+            return mScratch;
+        }
+        // Short last packet of a stream with unknown length
+        if (mPacket.length != copied) {
+            mPacket = new byte[copied];
+        }
+        System.arraycopy(mScratch, 0, mPacket, 0, copied);
+        return mPacket;
+    }
+
+    /**
+     * Moves on to the next filled block if the worker handed one over. Never waits.
+     *
+     * @return false if there is no block yet, or the producer is done and no more data will come.
+     */
+    private boolean nextBlock() throws IOException {
+        if (mCurrent != null) {
+            mFreeBlocks.offer(mCurrent);
+            mCurrent = null;
+        }
+        if (mEnded) {
+            if (mError != null) {
+                throw mError;
+            }
+            return false;
+        }
+        Block block = mFilledBlocks.poll();
+        if (block == null) {
+            return false;
+        }
+        if (block == END_OF_SOURCE) {
+            mEnded = true;
+            if (mWorkerError != null) {
+                mError = mWorkerError;
+            } else if (isLengthKnown() && mPosition < mLength) {
+                mError = new IOException("File source ended at " + mPosition + " of " + mLength + " bytes");
+            }
+            if (mError != null) {
+                throw mError;
+            }
+            return false;
+        }
+        mCurrent = block;
+        mCurrentOffset = 0;
+        return true;
+    }
+
+    /**
+     * Stops the worker thread. The producer sees an IOException on its next write.
+     */
+    void close() {
+        mClosed = true;
+        mWorker.interrupt();
+    }
+}
@@ -0,0 +1,58 @@
+package com.nordicsemi.ImageTransferDemo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A file read and compressed once and then sent to many devices. Every session reads the same
+ * immutable bytes at its own offset, so the memory used is the compressed size no matter how
+ * many devices take part.
+ */
+final class SharedPayload {
+    private final String mName;
+    private final byte mOperation;
+    private final byte[] mData;
+
+    private SharedPayload(String name, byte operation, byte[] data) {
+        mName = name;
+        mOperation = operation;
+        mData = data;
+    }
+
+    /**
+     * Reads and compresses the whole file, this blocks for as long as that takes.
+     */
+    static SharedPayload load(ContentSource file, CompressionCodec codec) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(file.length(), Integer.MAX_VALUE));
+        InputStream inputStream = file.open();
+        try {
+            codec.compress(inputStream, out);
+        } finally {
+            inputStream.close();
+        }
+        return new SharedPayload(file.getName(), (byte) codec.getId(), out.toByteArray());
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    int length() {
+        return mData.length;
+    }
+
+    /**
+     * Copies length bytes from offset into the packet.
+     */
+    void read(int offset, byte[] packet, int length) {
+        System.arraycopy(mData, offset, packet, 0, length);
+    }
+
+    /**
+     * @return The SetIncomingFileParams command, the size is known since the payload is complete.
+     */
+    byte[] buildIncomingFileCommand() {
+        return BleProtocol.setIncomingFileParams(mName, mData.length, mOperation);
+    }
+}
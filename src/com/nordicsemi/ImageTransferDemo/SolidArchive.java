@@ -0,0 +1,140 @@
+package com.nordicsemi.ImageTransferDemo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Many files sent as one solid stream, so a codec sees the redundancy across files and the
+ * link one continuous transfer instead of a handshake and a short last packet per file.
+ * The archive starts with a compact index followed by the contents of the files back to back:
+ * <pre>
+ * "FTSA", varint file count, per file: varint name length, UTF-8 name, varint content length
+ * </pre>
+ * Varints are unsigned LEB128, 7 bits per byte, least significant group first. Names are cut to
+ * {@link #MAX_NAME_LENGTH} bytes at a character boundary.
+ */
+class SolidArchive {
+    private static final byte[] MAGIC = {'F', 'T', 'S', 'A'};
+    private static final int MAX_NAME_LENGTH = 255;
+
+    private final List<ContentSource> mFiles;
+    private final long[] mLengths;
+    private final byte[] mIndex;
+    private final long mLength;
+
+    /**
+     * Builds the index, the lengths of all files are read up front, so it may block on their providers.
+     */
+    SolidArchive(List<ContentSource> files) throws IOException {
+        mFiles = files;
+        mLengths = new long[files.size()];
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        index.write(MAGIC);
+        writeVarint(index, files.size());
+        long length = 0;
+        for (int i = 0; i < files.size(); i++) {
+            ContentSource file = files.get(i);
+            byte[] name = file.getName().getBytes(StandardCharsets.UTF_8);
+            int nameLength = truncatedLength(name, MAX_NAME_LENGTH);
+            writeVarint(index, nameLength);
+            index.write(name, 0, nameLength);
+            mLengths[i] = file.length();
+            writeVarint(index, mLengths[i]);
+            length += mLengths[i];
+        }
+        mIndex = index.toByteArray();
+        mLength = mIndex.length + length;
+    }
+
+    /**
+     * @return The length of the longest prefix of at most maxLength bytes that does not split a character.
+     */
+    static int truncatedLength(byte[] utf8, int maxLength) {
+        if (utf8.length <= maxLength) {
+            return utf8.length;
+        }
+        int length = maxLength;
+        // Continuation bytes are 10xxxxxx, back up to the first byte of the character that is cut
+        while (length > 0 && (utf8[length] & 0xC0) == 0x80) {
+            length--;
+        }
+        return length;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    int getFileCount() {
+        return mFiles.size();
+    }
+
+    /**
+     * @return The length of the uncompressed archive, index included.
+     */
+    long length() {
+        return mLength;
+    }
+
+    /**
+     * Opens the archive, the files are opened one after the other while it is read.
+     */
+    InputStream open() {
+        return new ArchiveInputStream();
+    }
+
+    private class ArchiveInputStream extends InputStream {
+        private InputStream mCurrent = new ByteArrayInputStream(mIndex);
+        private long mCurrentLeft = mIndex.length;
+        private int mNextFile;
+        private final byte[] mOneByte = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            return read(mOneByte, 0, 1) == -1 ? -1 : mOneByte[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (mCurrentLeft == 0) {
+                if (!openNextFile()) {
+                    return -1;
+                }
+            }
+            int n = mCurrent.read(b, off, (int) Math.min(len, mCurrentLeft));
+            if (n == -1) {
+                // The file got shorter since the index was built
+                throw new IOException(mFiles.get(mNextFile - 1).getName() + " ended " + mCurrentLeft + " bytes early");
+            }
+            mCurrentLeft -= n;
+            return n;
+        }
+
+        private boolean openNextFile() throws IOException {
+            mCurrent.close();
+            if (mNextFile == mFiles.size()) {
+                return false;
+            }
+            mCurrent = mFiles.get(mNextFile).open();
+            mCurrentLeft = mLengths[mNextFile];
+            mNextFile++;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mCurrent.close();
+        }
+    }
+}
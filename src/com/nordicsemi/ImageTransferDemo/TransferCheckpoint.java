@@ -0,0 +1,76 @@
+package com.nordicsemi.ImageTransferDemo;
+
+import android.content.SharedPreferences;
+
+/**
+ * Persisted state of an upload that may be resumed after a disconnect, one per device
+ * address. The file is identified by its URI, length and SHA-256, the codec by its name,
+ * since a resumed transfer has to reproduce exactly the same byte stream. The acknowledged
+ * offset is the end of the last bulk window the receiver asked to continue after.
+ */
+class TransferCheckpoint {
+    static final String PREFS_NAME = "transfer_checkpoints";
+
+    private static final String KEY_URI = ".uri";
+    private static final String KEY_FILE_LENGTH = ".file_length";
+    private static final String KEY_CONTENT_HASH = ".content_hash";
+    private static final String KEY_CODEC = ".codec";
+    private static final String KEY_ACKED_OFFSET = ".acked_offset";
+
+    final String uri;
+    final long fileLength;
+    final String contentHash; // Hex SHA-256 of the file, null if it was not known yet
+    final String codecName;
+    final int ackedOffset;
+
+    TransferCheckpoint(String uri, long fileLength, String contentHash, String codecName, int ackedOffset) {
+        this.uri = uri;
+        this.fileLength = fileLength;
+        this.contentHash = contentHash;
+        this.codecName = codecName;
+        this.ackedOffset = ackedOffset;
+    }
+
+    TransferCheckpoint withAckedOffset(int offset) {
+        return new TransferCheckpoint(uri, fileLength, contentHash, codecName, offset);
+    }
+
+    TransferCheckpoint withContentHash(String hash) {
+        return new TransferCheckpoint(uri, fileLength, hash, codecName, ackedOffset);
+    }
+
+    /**
+     * @return The checkpoint of the device, or null if there is no unfinished upload.
+     */
+    static TransferCheckpoint load(SharedPreferences prefs, String address) {
+        String uri = prefs.getString(address + KEY_URI, null);
+        if (uri == null) {
+            return null;
+        }
+        return new TransferCheckpoint(uri,
+                prefs.getLong(address + KEY_FILE_LENGTH, -1),
+                prefs.getString(address + KEY_CONTENT_HASH, null),
+                prefs.getString(address + KEY_CODEC, null),
+                prefs.getInt(address + KEY_ACKED_OFFSET, 0));
+    }
+
+    void save(SharedPreferences prefs, String address) {
+        prefs.edit()
+                .putString(address + KEY_URI, uri)
+                .putLong(address + KEY_FILE_LENGTH, fileLength)
+                .putString(address + KEY_CONTENT_HASH, contentHash)
+                .putString(address + KEY_CODEC, codecName)
+                .putInt(address + KEY_ACKED_OFFSET, ackedOffset)
+                .apply();
+    }
+
+    static void clear(SharedPreferences prefs, String address) {
+        prefs.edit()
+                .remove(address + KEY_URI)
+                .remove(address + KEY_FILE_LENGTH)
+                .remove(address + KEY_CONTENT_HASH)
+                .remove(address + KEY_CODEC)
+                .remove(address + KEY_ACKED_OFFSET)
+                .apply();
+    }
+}
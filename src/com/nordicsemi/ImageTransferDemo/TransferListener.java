@@ -0,0 +1,25 @@
+package com.nordicsemi.ImageTransferDemo;
+
+/**
+ * Progress of the files the service sends and the images it receives, registered with
+ * {@link ImageTransferService.LocalBinder#addTransferListener(TransferListener)}. All methods are
+ * called on the main thread and get the live {@link TransferMetrics} or {@link ImageReceiver},
+ * nothing is allocated per call. Progress is coalesced to at most one call every
+ * {@link TransferMetrics#UPDATE_INTERVAL_MS}.
+ */
+interface TransferListener {
+    void onTransferProgress(TransferMetrics metrics);
+
+    /**
+     * Called once per transfer with its final numbers, a copy that no longer changes.
+     *
+     * @param completed false if the transfer was aborted, e.g. by a lost link or a read error.
+     */
+    void onTransferEnded(TransferMetrics metrics, boolean completed);
+
+    /**
+     * An image from the kit is complete. If images arrive faster than the main thread takes them,
+     * only the last one is reported.
+     */
+    void onImageReceived(ImageReceiver receiver);
+}
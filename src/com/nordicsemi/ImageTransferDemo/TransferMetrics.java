@@ -0,0 +1,251 @@
+package com.nordicsemi.ImageTransferDemo;
+
+import android.os.Handler;
+
+/**
+ * Live numbers of the transfer in progress: the payload bytes the stack accepted, retransmitted
+ * bytes kept apart, an exponentially weighted throughput and a histogram of the write completion
+ * latency. Writes only update counters, the listeners are called on the handler at most every
+ * {@link #UPDATE_INTERVAL_MS} and only while a transfer runs, plus once when it ends. The end
+ * is reported with a copy frozen by {@link #stop(boolean)}, the next transfer may start before
+ * the handler gets to it.
+ * <p>
+ * Latencies go into power of two buckets, bucket i holds 2^i to 2^(i+1) microseconds.
+ */
+class TransferMetrics {
+    static final long UPDATE_INTERVAL_MS = 100;
+    static final int LATENCY_BUCKETS = 24; // Up to ~16 s
+    private static final double EWMA_TIME_CONSTANT_NANOS = 1000000000.0;
+
+    private static final TransferListener[] NO_LISTENERS = new TransferListener[0];
+
+    private final Handler mHandler;
+    private volatile TransferListener[] mListeners = NO_LISTENERS; // Replaced, never modified, on a change
+    private boolean mActive;
+    private boolean mUpdatePosted;
+    private long mTotalBytes;
+    private long mSentBytes;
+    private long mRetransmittedBytes;
+    private int mPackets;
+    private final long[] mLatencyHistogram = new long[LATENCY_BUCKETS];
+    private long mStartNanos;
+    private long mLastSampleNanos;
+    private long mLastSampleBytes;
+    private double mThroughputBps;
+
+    private final Runnable mUpdate = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (TransferMetrics.this) {
+                mUpdatePosted = false;
+                sampleThroughput(System.nanoTime());
+            }
+            for (TransferListener listener : mListeners) {
+                listener.onTransferProgress(TransferMetrics.this);
+            }
+        }
+    };
+
+    TransferMetrics(Handler handler) {
+        mHandler = handler;
+    }
+
+    synchronized void addListener(TransferListener listener) {
+        for (TransferListener registered : mListeners) {
+            if (registered == listener) {
+                return;
+            }
+        }
+        TransferListener[] listeners = new TransferListener[mListeners.length + 1];
+        System.arraycopy(mListeners, 0, listeners, 0, mListeners.length);
+        listeners[mListeners.length] = listener;
+        mListeners = listeners;
+    }
+
+    /**
+     * @return The registered listeners, the array is replaced on a change and must not be modified.
+     */
+    TransferListener[] getListeners() {
+        return mListeners;
+    }
+
+    synchronized void removeListener(TransferListener listener) {
+        for (int i = 0; i < mListeners.length; i++) {
+            if (mListeners[i] == listener) {
+                TransferListener[] listeners = new TransferListener[mListeners.length - 1];
+                System.arraycopy(mListeners, 0, listeners, 0, i);
+                System.arraycopy(mListeners, i + 1, listeners, i, listeners.length - i);
+                mListeners = listeners.length > 0 ? listeners : NO_LISTENERS;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Resets all numbers for a new transfer.
+     *
+     * @param totalBytes  Size shown as the goal, may change with {@link #setTotalBytes(long)}.
+     * @param startOffset Bytes the receiver already has, e.g. of a resumed transfer.
+     */
+    synchronized void start(long totalBytes, long startOffset) {
+        mActive = true;
+        mTotalBytes = totalBytes;
+        mSentBytes = startOffset;
+        mRetransmittedBytes = 0;
+        mPackets = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            mLatencyHistogram[i] = 0;
+        }
+        mStartNanos = System.nanoTime();
+        mLastSampleNanos = mStartNanos;
+        mLastSampleBytes = startOffset;
+        mThroughputBps = 0;
+        mHandler.removeCallbacks(mUpdate);
+        postUpdate();
+    }
+
+    synchronized void setTotalBytes(long totalBytes) {
+        mTotalBytes = totalBytes;
+    }
+
+    /**
+     * @param payloadBytes  ATT payload of the packet, the header is not counted.
+     * @param retransmitted true if the packet was sent before.
+     * @param latencyNanos  Time from queuing the write until its completion.
+     */
+    synchronized void onPacketWritten(int payloadBytes, boolean retransmitted, long latencyNanos) {
+        if (!mActive) {
+            return;
+        }
+        if (retransmitted) {
+            mRetransmittedBytes += payloadBytes;
+        } else {
+            mSentBytes += payloadBytes;
+        }
+        mPackets++;
+        long micros = Math.max(latencyNanos / 1000, 1);
+        mLatencyHistogram[Math.min(63 - Long.numberOfLeadingZeros(micros), LATENCY_BUCKETS - 1)]++;
+        if (!mUpdatePosted) {
+            postUpdate();
+        }
+    }
+
+    /**
+     * Ends the transfer, the listeners get the final numbers right away.
+     *
+     * @param completed false if the transfer was aborted.
+     */
+    synchronized void stop(final boolean completed) {
+        if (!mActive) {
+            return;
+        }
+        mActive = false;
+        mHandler.removeCallbacks(mUpdate);
+        mUpdatePosted = false;
+        sampleThroughput(System.nanoTime());
+        final TransferMetrics result = copy();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (TransferListener listener : mListeners) {
+                    listener.onTransferEnded(result, completed);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The current numbers, without listeners.
+     */
+    private TransferMetrics copy() {
+        TransferMetrics copy = new TransferMetrics(mHandler);
+        copy.mTotalBytes = mTotalBytes;
+        copy.mSentBytes = mSentBytes;
+        copy.mRetransmittedBytes = mRetransmittedBytes;
+        copy.mPackets = mPackets;
+        System.arraycopy(mLatencyHistogram, 0, copy.mLatencyHistogram, 0, LATENCY_BUCKETS);
+        copy.mStartNanos = mStartNanos;
+        copy.mLastSampleNanos = mLastSampleNanos;
+        copy.mLastSampleBytes = mLastSampleBytes;
+        copy.mThroughputBps = mThroughputBps;
+        return copy;
+    }
+
+    private void postUpdate() {
+        mUpdatePosted = true;
+        mHandler.postDelayed(mUpdate, UPDATE_INTERVAL_MS);
+    }
+
+    private void sampleThroughput(long now) {
+        long elapsed = now - mLastSampleNanos;
+        if (elapsed <= 0) {
+            return;
+        }
+        double sample = (mSentBytes + mRetransmittedBytes - mLastSampleBytes) * 8.0 * 1000000000.0 / elapsed;
+        // The weight of a sample grows with the time it covers, so irregular updates do not skew the average
+        double alpha = mLastSampleNanos == mStartNanos ? 1.0 : 1.0 - Math.exp(-elapsed / EWMA_TIME_CONSTANT_NANOS);
+        mThroughputBps += alpha * (sample - mThroughputBps);
+        mLastSampleNanos = now;
+        mLastSampleBytes = mSentBytes + mRetransmittedBytes;
+    }
+
+    synchronized boolean isActive() {
+        return mActive;
+    }
+
+    synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * @return Payload bytes accepted by the stack, retransmissions excluded.
+     */
+    synchronized long getSentBytes() {
+        return mSentBytes;
+    }
+
+    synchronized long getRetransmittedBytes() {
+        return mRetransmittedBytes;
+    }
+
+    synchronized int getPacketCount() {
+        return mPackets;
+    }
+
+    /**
+     * @return Smoothed throughput on air in bits per second, retransmissions included.
+     */
+    synchronized int getThroughputBps() {
+        return (int) mThroughputBps;
+    }
+
+    /**
+     * @return Progress in percent, 0 if the total is not known.
+     */
+    synchronized int getProgressPercent() {
+        return mTotalBytes > 0 ? (int) Math.min(mSentBytes * 100 / mTotalBytes, 100) : 0;
+    }
+
+    synchronized long[] getLatencyHistogram() {
+        return mLatencyHistogram.clone();
+    }
+
+    /**
+     * @param percentile 0 to 100.
+     * @return Upper bound in microseconds of the bucket holding the percentile, 0 without samples.
+     */
+    synchronized long getLatencyPercentileMicros(int percentile) {
+        if (mPackets == 0) {
+            return 0;
+        }
+        long rank = Math.max((long) mPackets * percentile / 100, 1);
+        long seen = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            seen += mLatencyHistogram[i];
+            if (seen >= rank) {
+                return 1L << (i + 1);
+            }
+        }
+        return 1L << LATENCY_BUCKETS;
+    }
+}
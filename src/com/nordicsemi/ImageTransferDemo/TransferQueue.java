@@ -0,0 +1,73 @@
+package com.nordicsemi.ImageTransferDemo;
+
+import android.net.Uri;
+
+import java.util.PriorityQueue;
+
+/**
+ * Files waiting to be sent, the highest priority first and files of equal priority in the
+ * order they were queued. Thread safe, files are queued from the UI and taken by the queue
+ * worker of the service.
+ */
+class TransferQueue {
+
+    static class Entry implements Comparable<Entry> {
+        final Uri uri;
+        final int priority;
+        final CompressionCodec codec; // null to select one automatically
+        private final long mSequence;
+
+        private Entry(Uri uri, int priority, CompressionCodec codec, long sequence) {
+            this.uri = uri;
+            this.priority = priority;
+            this.codec = codec;
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    private final PriorityQueue<Entry> mEntries = new PriorityQueue<>();
+    private long mNextSequence;
+
+    synchronized void add(Uri uri, int priority, CompressionCodec codec) {
+        mEntries.add(new Entry(uri, priority, codec, mNextSequence++));
+    }
+
+    /**
+     * Puts back an entry that was taken but not sent, it keeps its place among the files of
+     * the same priority.
+     */
+    synchronized void requeue(Entry entry) {
+        mEntries.add(entry);
+    }
+
+    /**
+     * @return The next file to send, or null if the queue is empty.
+     */
+    synchronized Entry poll() {
+        return mEntries.poll();
+    }
+
+    /**
+     * @return true if a queued file should be sent before the given one.
+     */
+    synchronized boolean hasEntryBefore(Entry entry) {
+        Entry head = mEntries.peek();
+        return head != null && head.compareTo(entry) < 0;
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+    }
+}
@@ -0,0 +1,110 @@
+package com.nordicsemi.ImageTransferDemo;
+
+/**
+ * What happened during one file transfer, kept by the service for the last transfer.
+ */
+public class TransferStats {
+    private final String mFileName;
+    private final long mFileBytes;
+    private final String mRequestedCodec;
+    private String mCodec;
+    private float mSampleEntropy = -1.0f;
+    private boolean mCompressionSkipped;
+    private int mResumeOffset;
+    private boolean mDeduplicated;
+    private long mSentBytes;
+    private long mElapsedNanos;
+
+    TransferStats(String fileName, long fileBytes, String requestedCodec) {
+        mFileName = fileName;
+        mFileBytes = fileBytes;
+        mRequestedCodec = requestedCodec;
+        mCodec = requestedCodec;
+    }
+
+    void setCodec(String codec) {
+        mCodec = codec;
+    }
+
+    void setSampleEntropy(float bitsPerByte) {
+        mSampleEntropy = bitsPerByte;
+    }
+
+    void setCompressionSkipped(boolean skipped) {
+        mCompressionSkipped = skipped;
+    }
+
+    void setResumeOffset(int offset) {
+        mResumeOffset = offset;
+    }
+
+    void setDeduplicated(boolean deduplicated) {
+        mDeduplicated = deduplicated;
+    }
+
+    void setCompleted(long sentBytes, long elapsedNanos) {
+        mSentBytes = sentBytes;
+        mElapsedNanos = elapsedNanos;
+    }
+
+    public String getFileName() {
+        return mFileName;
+    }
+
+    public long getFileBytes() {
+        return mFileBytes;
+    }
+
+    public String getRequestedCodec() {
+        return mRequestedCodec;
+    }
+
+    public String getCodec() {
+        return mCodec;
+    }
+
+    /**
+     * @return Order-0 entropy of the sample in bits per byte, or -1 if no sample was taken.
+     */
+    public float getSampleEntropy() {
+        return mSampleEntropy;
+    }
+
+    /**
+     * @return true if compression was requested but bypassed because the data looked incompressible.
+     */
+    public boolean isCompressionSkipped() {
+        return mCompressionSkipped;
+    }
+
+    /**
+     * @return Offset an interrupted upload was resumed from, 0 if the transfer started from the beginning.
+     */
+    public int getResumeOffset() {
+        return mResumeOffset;
+    }
+
+    /**
+     * @return true if the receiver already had the content and no payload was sent.
+     */
+    public boolean isDeduplicated() {
+        return mDeduplicated;
+    }
+
+    public long getSentBytes() {
+        return mSentBytes;
+    }
+
+    public long getElapsedNanos() {
+        return mElapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return mFileName + ": " + mFileBytes + " bytes, codec " + mCodec
+                + (mCompressionSkipped ? " (" + mRequestedCodec + " skipped, entropy " + mSampleEntropy + " bits/byte)" : "")
+                + (mResumeOffset > 0 ? ", resumed at " + mResumeOffset : "")
+                + (mDeduplicated ? ", already on the device" : "")
+                + ", sent " + mSentBytes + " bytes in " + mElapsedNanos / 1000000 + " ms";
+    }
+}